@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper for implementing ReplacementPolicy. Keeps the hit/miss/eviction
+ * counters so that subclasses only have to deal with victim selection.
+ */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    protected void countHit() {
+        hits.incrementAndGet();
+    }
+
+    protected void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    protected void countEviction() {
+        evictions.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * @return true if pid is the root pointer or an internal page of a B+
+     *   tree. Every index lookup goes through these pages, so policies should
+     *   prefer to keep them resident over pages touched once by a scan.
+     */
+    protected static boolean isIndexInteriorPage(PageId pid) {
+        if (!(pid instanceof BTreePageId))
+            return false;
+        int categ = ((BTreePageId) pid).pgcateg();
+        return categ == BTreePageId.ROOT_PTR || categ == BTreePageId.INTERNAL;
+    }
+}
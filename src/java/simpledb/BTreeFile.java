@@ -1,9 +1,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import simpledb.LockManager.KeyRange;
+import simpledb.LockManager.Mode;
 import simpledb.Predicate.Op;
 
 /**
@@ -12,6 +18,24 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions lock the leaf pages they read and write, but not the internal
+ * pages they pass through on the way: those are protected by a short-term
+ * latch on the tree instead. Inserts, deletes and scans descend holding the
+ * latch shared, so they run concurrently, and an insert or delete that fits
+ * in its leaf changes nothing else. One that has to split or merge pages
+ * starts over holding the latch exclusive. While the latch is held no lock
+ * is ever waited for: if one can't be granted at once, the operation undoes
+ * what it changed, waits for the lock without the latch, and starts over.
+ * <p>
+ * Index scans don't lock leaf pages at all. They lock the keys they read,
+ * and the gaps between them, with key-range locks, and inserts and deletes
+ * lock the keys they change and the gaps next to them, so a point lookup
+ * only waits for writers of the same key or gap. Writers still lock the
+ * leaf pages they change, which keeps two of them from changing one page
+ * at once. A leaf page is read without a lock, and changed, only under its
+ * own short-term latch, taken with the tree latch held shared and in order
+ * along the leaf level, left to right.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -25,6 +49,87 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] keyFields;
+	// whether string keys are compressed, which is part of the page format
+	private final boolean compressKeys;
+	private final PageChannel pageChannel;
+
+	// held shared to read internal pages without locking them, and
+	// exclusive to change the structure of the tree
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	// for the holder of the exclusive latch: the pages the structure change
+	// in progress has modified, as they were before, and the pages it has
+	// added to the end of the file
+	private final ArrayList<Snapshot> changed = new ArrayList<Snapshot>();
+	private final ArrayList<Integer> appended = new ArrayList<Integer>();
+	// pages added to the file by structure changes that were undone
+	private final ArrayDeque<Integer> sparePages = new ArrayDeque<Integer>();
+	// latches of the leaf pages, by page number; a page's latch is dropped
+	// when the page is freed, see releaseLatch
+	private final ConcurrentHashMap<Integer, ReentrantLock> leafLatches = 
+			new ConcurrentHashMap<Integer, ReentrantLock>();
+
+	/**
+	 * Thrown by getPage and lockRange when a lock can't be granted while the
+	 * tree latch is held.
+	 */
+	private static class LockConflict extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final BTreePageId pid;
+		final Permissions perm;
+		final KeyRange range;
+		final Mode mode;
+
+		LockConflict(BTreePageId pid, Permissions perm) {
+			this.pid = pid;
+			this.perm = perm;
+			this.range = null;
+			this.mode = null;
+		}
+
+		LockConflict(KeyRange range, Mode mode) {
+			this.pid = null;
+			this.perm = null;
+			this.range = range;
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * A page as it was before a structure change modified it.
+	 */
+	private static class Snapshot {
+		final Page page;
+		final byte[] data;
+		final byte[] before;
+
+		Snapshot(Page page) {
+			this.page = page;
+			this.data = page.getPageData();
+			if(page instanceof BTreePage) {
+				this.before = ((BTreePage) page).savedBeforeImage();
+			}
+			else if(page instanceof BTreeRootPtrPage) {
+				this.before = ((BTreeRootPtrPage) page).savedBeforeImage();
+			}
+			else {
+				this.before = ((BTreeHeaderPage) page).savedBeforeImage();
+			}
+		}
+
+		void restore() throws IOException {
+			if(page instanceof BTreePage) {
+				((BTreePage) page).restore(data, before);
+			}
+			else if(page instanceof BTreeRootPtrPage) {
+				((BTreeRootPtrPage) page).restore(data, before);
+			}
+			else {
+				((BTreeHeaderPage) page).restore(data, before);
+			}
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +140,91 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td, null);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, which stores
+	 * string keys compressed if compressKeys is set: leaf pages keep only the
+	 * part of each key not shared with the key before it, and internal pages
+	 * keep separator keys no longer than needed to tell their children
+	 * apart. That fits more keys on a page when keys share long prefixes.
+	 * The setting is part of the format of the file and is recorded in its
+	 * root pointer page, so the other constructors open a compressed file
+	 * correctly too. It has no effect unless the key field is a string.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param compressKeys - whether to compress string keys
+	 * @throws IllegalArgumentException if f already holds a B+ tree with the
+	 *   other setting
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean compressKeys) {
+		this(f, new int[] { key }, td, compressKeys);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on one or more fields. Tuples are kept
+	 * sorted on the first field, then on the second among those with the same
+	 * first field, and so on; with more than one field, their keys are
+	 * {@link CompositeField}s, and so are the values index predicates compare
+	 * them to, which may have fewer fields to select on a prefix of the key.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, null);
+	}
+
+	/**
+	 * @param compressKeys - whether to compress string keys, or null to do
+	 *   as the file says, and not compress them in a new file
+	 */
+	private BTreeFile(File f, int[] keys, TupleDesc td, Boolean compressKeys) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.pageChannel = new PageChannel(f);
+		Boolean stored = storedKeyCompression();
+		if(stored != null && compressKeys != null && !stored.equals(compressKeys)) {
+			throw new IllegalArgumentException(f + (stored ? " compresses" : " does not compress") 
+					+ " its string keys");
+		}
+		this.compressKeys = stored != null ? stored : compressKeys != null && compressKeys;
+	}
+
+	/**
+	 * @return whether the root pointer page of the file says string keys
+	 * are compressed, or null if the file has no root pointer page yet
+	 */
+	private Boolean storedKeyCompression() {
+		if(f.length() < BTreeRootPtrPage.getPageSize()) {
+			return null;
+		}
+		try {
+			DataInputStream dis = new DataInputStream(new FileInputStream(f));
+			try {
+				byte[] data = new byte[BTreeRootPtrPage.getPageSize()];
+				dis.readFully(data);
+				return new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), data).compressesKeys();
+			}
+			finally {
+				dis.close();
+			}
+		}
+		catch(IOException e) {
+			throw new IllegalArgumentException("Unable to read the root pointer page of " + f, e);
+		}
 	}
 
 	/**
@@ -79,13 +265,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = pageChannel.read(pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -99,12 +283,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = pageChannel.read(pageBuf, pageOffset(id.pageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -114,11 +293,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields, compressKeys);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields, compressKeys);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -128,17 +307,17 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * @return the offset in the file of the page with the given number;
+	 * page 0 is the root pointer page, which is smaller than the others
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,18 +328,29 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			pageChannel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			pageChannel.write(data, pageOffset(page.getId().pageNumber()));
 		}
 	}
 	
+	/**
+	 * Writes adjacent pages with one gathering write. The root pointer page
+	 * is directly followed by page 1, so it can start a run too.
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		if (pages.isEmpty())
+			return;
+		ByteBuffer[] data = new ByteBuffer[pages.size()];
+		for (int i = 0; i < data.length; i++)
+			data[i] = ByteBuffer.wrap(pages.get(i).getPageData());
+		BTreePageId first = (BTreePageId) pages.get(0).getId();
+		long offset = first.pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(first.pageNumber());
+		pageChannel.write(data, offset);
+	}
+	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -170,16 +360,46 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, the first
+	 * if it is keyed on more than one
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns whether this B+ tree stores its string keys compressed
+	 */
+	public boolean compressesKeys() {
+		return compressKeys;
+	}
+
+	/**
+	 * @return the key of t in this B+ tree
+	 */
+	private Field keyOf(Tuple t) {
+		return BTreePage.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return a value to compare the keys of this B+ tree to: f itself, or if
+	 * the keys are composite and f is not, a prefix holding only f
+	 */
+	private Field asKey(Field f) {
+		return keyFields.length > 1 && !(f instanceof CompositeField) ? new CompositeField(f) : f;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
+	 * the left-most page possibly containing the key field f. It reads the internal
+	 * nodes along the path to the leaf node with getStructurePage, and locks the 
 	 * leaf node with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
@@ -210,26 +430,13 @@ public class BTreeFile implements DbFile {
 				throw new DbException("Error pid type!");
 			}
 
-			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> pageIter = page.iterator();
-			if (!pageIter.hasNext()) {
+			BTreeInternalPage page = (BTreeInternalPage) getStructurePage(tid, dirtypages, pid);
+			// go left of the first entry whose key is greater than or equal to f
+			BTreePageId child = findChild(tid, dirtypages, page, f);
+			if (child == null) {
 				throw new DbException("Error in reading entry!");
 			}
-			BTreeEntry pageEntry = pageIter.next();
-			while(true) {
-				// if the field to search for is less or equal than entry.filed value, go left
-				if (f.compare(Op.LESS_THAN_OR_EQ, pageEntry.getKey())) {
-					return findLeafPage(tid, dirtypages, pageEntry.getLeftChild(), perm, f);
-				}
-				if (pageIter.hasNext()) {
-					pageEntry = pageIter.next();
-				}
-				else {
-					break;
-				}
-			}
-
-			return findLeafPage(tid, dirtypages, pageEntry.getRightChild(), perm, f);
+			return findLeafPage(tid, dirtypages, child, perm, f);
 
 		}
 	}
@@ -248,7 +455,7 @@ public class BTreeFile implements DbFile {
 				throw new DbException("Error pid type!");
 			}
 
-			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			BTreeInternalPage page = (BTreeInternalPage) getStructurePage(tid, dirtypages, pid);
 			Iterator<BTreeEntry> pageIter = page.iterator();
 			if (!pageIter.hasNext()) {
 				throw new DbException("Error in reading entry!");
@@ -259,21 +466,324 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Find and lock the left-most leaf page possibly containing the key field
+	 * f, or the left-most leaf page if f is null, descending under the shared
+	 * tree latch. Used by the BTreeFile iterators.
 	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 * if the tree has no root yet
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		BTreePageId waitedFor = null;
+		while(true) {
+			LockConflict conflict;
+			treeLatch.readLock().lock();
+			try {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+				if(rootId == null) {
+					return null;
+				}
+				BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, perm, f);
+				releaseStaleLock(tid, waitedFor, leafPage);
+				return leafPage;
+			}
+			catch(IOException e) {
+				throw new DbException("could not create the root pointer page");
+			}
+			catch(LockConflict e) {
+				conflict = e;
+			}
+			finally {
+				treeLatch.readLock().unlock();
+			}
+			waitedFor = awaitLock(tid, conflict);
+		}
+	}
+
+	/**
+	 * @return true if the current thread holds the tree latch, shared or exclusive
+	 */
+	private boolean latched() {
+		return treeLatch.isWriteLockedByCurrentThread() || treeLatch.getReadHoldCount() > 0;
+	}
+
+	/**
+	 * Wait, without holding the tree latch, for a lock that could not be
+	 * granted while it was held.
+	 * 
+	 * @param tid - the transaction id
+	 * @param conflict - the request that could not be granted
+	 * @return the id of the page, if tid did not have it locked before, or null
+	 */
+	private BTreePageId awaitLock(TransactionId tid, LockConflict conflict)
+			throws DbException, TransactionAbortedException {
+		if(conflict.range != null) {
+			Database.getBufferPool().lockKeyRange(tid, conflict.range, conflict.mode, true);
+			return null;
+		}
+		boolean held = Database.getBufferPool().holdsLock(tid, conflict.pid);
+		Database.getBufferPool().getPage(tid, conflict.pid, conflict.perm);
+		return held ? null : conflict.pid;
+	}
+
+	/**
+	 * Release the lock on a leaf page that was waited for, if repeating the
+	 * descent led to a different leaf: the tree changed while tid waited, and
+	 * tid has not read or written the page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param waitedFor - the page returned by awaitLock, or null
+	 * @param leafPage - the leaf page the descent found
+	 */
+	private void releaseStaleLock(TransactionId tid, BTreePageId waitedFor, BTreeLeafPage leafPage) {
+		if(waitedFor != null && !waitedFor.equals(leafPage.getId())) {
+			Database.getBufferPool().releasePage(tid, waitedFor);
+		}
+	}
+
+	/**
+	 * Lock a key of this index, or the gap below it, without waiting, since
+	 * the tree latch is held.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key, or null for the end of the index
+	 * @param gap - whether to lock the gap below the key rather than the key
+	 * @param mode - S, IX or X, see {@link KeyRange}
+	 * @throws LockConflict if the lock can't be granted at once
+	 */
+	private void lockRange(TransactionId tid, Field key, boolean gap, Mode mode)
+			throws TransactionAbortedException {
+		KeyRange range = new KeyRange(tableid, key, gap);
+		if(!Database.getBufferPool().lockKeyRange(tid, range, mode, false)) {
+			throw new LockConflict(range, mode);
+		}
+	}
+
+	/**
+	 * Take the latch of a leaf page, unless the tree latch is held exclusive,
+	 * which already keeps everyone else off the leaf pages.
+	 * 
+	 * @param pid - the leaf page
+	 * @param latches - the latches held, in the order taken, to add this one to
+	 */
+	private void latch(BTreePageId pid, ArrayList<ReentrantLock> latches) {
+		if(treeLatch.isWriteLockedByCurrentThread()) {
+			return;
+		}
+		ReentrantLock latch = leafLatches.get(pid.pageNumber());
+		if(latch == null) {
+			leafLatches.putIfAbsent(pid.pageNumber(), new ReentrantLock());
+			latch = leafLatches.get(pid.pageNumber());
+		}
+		latch.lock();
+		latches.add(latch);
+	}
+
+	/**
+	 * Drop the latch of a page that is no longer part of the tree, so the
+	 * latches don't pile up as pages are freed. Only while the tree latch is
+	 * held exclusive, when no one holds or waits for a leaf latch: all of
+	 * them are taken under the shared tree latch.
+	 * 
+	 * @param pageNo - the page number of the page
+	 */
+	private void releaseLatch(int pageNo) {
+		if(treeLatch.isWriteLockedByCurrentThread()) {
+			leafLatches.remove(pageNo);
+		}
+	}
+
+	/**
+	 * Latch a leaf page and read it without locking it. The page is fetched
+	 * after it is latched, so it includes every change made to it before.
+	 * 
+	 * @param pid - the leaf page
+	 * @param latches - the latches held, in the order taken
+	 * @return the leaf page
+	 */
+	private BTreeLeafPage latchLeaf(BTreePageId pid, ArrayList<ReentrantLock> latches)
+			throws DbException {
+		latch(pid, latches);
+		return (BTreeLeafPage) Database.getBufferPool().getPageUnlocked(pid);
+	}
+
+	/**
+	 * Release the leaf page latches taken by latch, last first.
+	 */
+	private static void unlatch(ArrayList<ReentrantLock> latches) {
+		for(int i = latches.size() - 1; i >= 0; i--) {
+			latches.get(i).unlock();
+		}
+		latches.clear();
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing the key field f, or the
+	 * left-most leaf page if f is null, without locking it. The tree latch
+	 * must be held.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the root page
+	 * @param f - the field to search for
+	 * @return the id of the leaf page
+	 */
+	private BTreePageId findLeafId(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Field f)
+			throws DbException, TransactionAbortedException {
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getStructurePage(tid, dirtypages, pid);
+			pid = f == null ? page.iterator().next().getLeftChild() : findChild(tid, dirtypages, page, f);
+		}
+		return pid;
+	}
+
+	/**
+	 * Find the child of an internal page a search for f goes to. A key cut
+	 * short in a compressed string index does not tell apart the keys that
+	 * start with what is left of it, so a search for one of those goes right
+	 * of it if f is not less than the smallest key under the child to its
+	 * right. The tree latch must be held, or the pages read are locked.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page
+	 * @param f - the field to search for
+	 * @return the id of the child page
+	 */
+	private BTreePageId findChild(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page, 
+			Field f) throws DbException, TransactionAbortedException {
+		BTreePageId child = page.findChild(f);
+		for(BTreeEntry e : page.findCutEntries(f)) {
+			Field first = firstKey(tid, dirtypages, e.getRightChild());
+			if(first == null || f.compare(Op.LESS_THAN, first)) {
+				break;
+			}
+			child = e.getRightChild();
+		}
+		return child;
+	}
+
+	/**
+	 * @return the smallest key under a page, or null if there is none
+	 */
+	private Field firstKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = ((BTreeInternalPage) getStructurePage(tid, dirtypages, pid)).iterator().next().getLeftChild();
+		}
+		ArrayList<ReentrantLock> latches = new ArrayList<ReentrantLock>();
+		try {
+			BTreeLeafPage page = dirtypages.containsKey(pid) || !latched() 
+					? (BTreeLeafPage) getStructurePage(tid, dirtypages, pid) : latchLeaf(pid, latches);
+			Iterator<Tuple> it = page.iterator();
+			return it.hasNext() ? keyOf(it.next()) : null;
+		}
+		finally {
+			unlatch(latches);
+		}
+	}
+
+	/**
+	 * Find the smallest key greater than key, on a latched or locked leaf page 
+	 * or the leaf pages to its right, latching each of those it reads.
+	 * 
+	 * @param page - the leaf page to start from
+	 * @param key - the key
+	 * @param latches - the latches held, in the order taken
+	 * @return the next key, or null if key is the largest key in the index
+	 */
+	private Field nextKey(BTreeLeafPage page, Field key, ArrayList<ReentrantLock> latches)
+			throws DbException {
+		Iterator<Tuple> it = page.iterator(key);
+		while(true) {
+			while(it.hasNext()) {
+				Field k = keyOf(it.next());
+				if(k.compare(Op.GREATER_THAN, key)) {
+					return k;
+				}
+			}
+			BTreePageId right = page.getRightSiblingId();
+			if(right == null) {
+				return null;
+			}
+			page = latchLeaf(right, latches);
+			it = page.iterator();
+		}
+	}
+
+	/**
+	 * Lock the key of a tuple about to be inserted into a leaf page X, and
+	 * the gap it goes into IX, unless the key is on the page already, in which
+	 * case the gaps stay as they are.
+	 * 
+	 * @param tid - the transaction id
+	 * @param page - the latched leaf page the tuple goes on
+	 * @param key - the key of the tuple
+	 * @param latches - the latches held, in the order taken
+	 */
+	private void lockInsert(TransactionId tid, BTreeLeafPage page, Field key, ArrayList<ReentrantLock> latches)
+			throws DbException, TransactionAbortedException {
+		lockRange(tid, key, false, Mode.X);
+		Iterator<Tuple> it = page.iterator(key);
+		if(it.hasNext() && keyOf(it.next()).equals(key)) {
+			return;
+		}
+		lockRange(tid, nextKey(page, key, latches), true, Mode.IX);
+	}
+
+	/**
+	 * Lock the key of a tuple about to be deleted from a leaf page X, and the
+	 * gap above it X, since deleting the last tuple with the key joins the
+	 * two gaps around it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param page - the latched leaf page the tuple is on
+	 * @param key - the key of the tuple
+	 * @param latches - the latches held, in the order taken
+	 */
+	private void lockDelete(TransactionId tid, BTreeLeafPage page, Field key, ArrayList<ReentrantLock> latches)
+			throws DbException, TransactionAbortedException {
+		lockRange(tid, key, false, Mode.X);
+		lockRange(tid, nextKey(page, key, latches), true, Mode.X);
+	}
+
+	/**
+	 * Take the tree latch exclusive to change the structure of the tree.
+	 * Every page fetched with READ_WRITE permission until
+	 * endStructureChange is saved first, so the change can be undone.
+	 */
+	private void beginStructureChange() {
+		treeLatch.writeLock().lock();
+		changed.clear();
+		appended.clear();
+	}
+
+	/**
+	 * Undo the structure change in progress, which could not get a lock it
+	 * needed: put back the pages it modified, and keep the pages it added to
+	 * the file for the next change that needs a new page.
+	 */
+	private void undoStructureChange() throws IOException {
+		for(int i = changed.size() - 1; i >= 0; i--) {
+			changed.get(i).restore();
+		}
+		sparePages.addAll(appended);
+	}
+
+	/**
+	 * Release the exclusive tree latch taken by beginStructureChange.
+	 */
+	private void endStructureChange() {
+		changed.clear();
+		appended.clear();
+		treeLatch.writeLock().unlock();
 	}
 
 	/**
@@ -309,12 +819,8 @@ public class BTreeFile implements DbFile {
 		// tuple with the given key field should be inserted.
 		BTreeLeafPage newLeafPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 
-		// find the middle key and update the first half to new leaf page
-		int num_tuples = page.getNumTuples();
-		int middle_idx = num_tuples / 2;
-		if (2 * middle_idx < num_tuples)
-			middle_idx ++;
-		int cnt_tuples = 0;
+		// move the first half to the new leaf page: half the tuples, or on a
+		// compressed page, half the room they take
 		Iterator<Tuple> pageIter = page.iterator();
 		if (!pageIter.hasNext()) {
 			throw new DbException("Error in reading entry!");
@@ -322,11 +828,10 @@ public class BTreeFile implements DbFile {
 
 		Tuple tp = pageIter.next();
 		while(true) {
-			cnt_tuples ++;
 			page.deleteTuple(tp);
 			newLeafPage.insertTuple(tp);
 
-			if (cnt_tuples == middle_idx) {
+			if (newLeafPage.getNumEmptySlots() <= page.getNumEmptySlots()) {
 				break;
 			}
 
@@ -346,18 +851,21 @@ public class BTreeFile implements DbFile {
 		page.setLeftSiblingId(newLeafPage.getId());
 
 		// get the parent page
+		Field separator = page.separator(keyOf(tp), 
+				keyOf(page.iterator().next()));
 		BTreePageId parentPageId = page.getParentId();
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, parentPageId,
-				tp.getField(this.keyField));
+				separator);
+		parentPage = splitParent(tid, dirtypages, page, parentPage);
 
 		// add middle key up into the parent page & update parent pointer
-		BTreeEntry e = new BTreeEntry(tp.getField((this.keyField)), newLeafPage.getId(), page.getId());
+		BTreeEntry e = new BTreeEntry(separator, newLeafPage.getId(), page.getId());
 		parentPage.insertEntry(e);
 
 		// update children pointer
 		updateParentPointers(tid, dirtypages, parentPage);
 
-		if (tp.getField(this.keyField).compare(Op.LESS_THAN_OR_EQ, field))
+		if (separator.compare(Op.LESS_THAN_OR_EQ, field))
 			return page;
 		else
         	return newLeafPage;
@@ -428,6 +936,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId parentPageId = page.getParentId();
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, parentPageId,
 				e.getKey());
+		parentPage = splitParent(tid, dirtypages, page, parentPage);
 
 		// remove this entry from the split page
 //		page.deleteKeyAndLeftChild(e);
@@ -505,6 +1014,27 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * The parent of a page being split, once getParentWithEmptySlots has made
+	 * room in it. That splits a full parent, and picks the half to return by
+	 * comparing keys, which a separator cut short in a compressed string
+	 * index cannot always settle; the split has set the page's parent
+	 * pointer, though.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page being split
+	 * @param parent - the page getParentWithEmptySlots returned
+	 * @return the parent of page
+	 */
+	private BTreeInternalPage splitParent(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePage page,
+			BTreeInternalPage parent) throws DbException, IOException, TransactionAbortedException {
+		if(parent.getId().equals(page.getParentId())) {
+			return parent;
+		}
+		return (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -519,7 +1049,7 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		BTreePage p = (BTreePage) getStructurePage(tid, dirtypages, child);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -580,14 +1110,52 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			Page p;
+			if(latched()) {
+				// never wait for a lock while holding the tree latch
+				p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+				if(p == null) {
+					throw new LockConflict(pid, perm);
+				}
+			}
+			else {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			}
 			if(perm == Permissions.READ_WRITE) {
+				if(treeLatch.isWriteLockedByCurrentThread()) {
+					changed.add(new Snapshot(p));
+				}
 				dirtypages.put(pid, p);
 			}
 			return p;
 		}
 	}
 
+	/**
+	 * Fetch an internal, header or root pointer page to read the structure of
+	 * the tree from, or a page to read its parent pointer. These only change
+	 * under the exclusive tree latch, so while the latch is held the page is
+	 * not locked; otherwise it is locked with READ_ONLY permission.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @return the requested page
+	 * 
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getStructurePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		if(latched()) {
+			return Database.getBufferPool().getPageUnlocked(pid);
+		}
+		return getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -600,9 +1168,77 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		Field key = keyOf(t);
+
+		// find and lock the leaf page under the shared latch, and insert the tuple
+		// there if it has room
+		BTreePageId waitedFor = null;
+		while(true) {
+			LockConflict conflict;
+			ArrayList<ReentrantLock> latches = new ArrayList<ReentrantLock>();
+			treeLatch.readLock().lock();
+			try {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+				if(rootId == null) {
+					break;
+				}
+				// lock the key before the page, so waiting for the key doesn't keep
+				// other writers off the page
+				BTreePageId leafId = findLeafId(tid, dirtypages, rootId, key);
+				lockInsert(tid, latchLeaf(leafId, latches), key, latches);
+				BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+				releaseStaleLock(tid, waitedFor, leafPage);
+				if(leafPage.getNumEmptySlots() == 0) {
+					break;
+				}
+				leafPage.insertTuple(t);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(leafPage);
+				return dirtyPagesArr;
+			}
+			catch(LockConflict e) {
+				conflict = e;
+			}
+			finally {
+				unlatch(latches);
+				treeLatch.readLock().unlock();
+			}
+			waitedFor = awaitLock(tid, conflict);
+		}
+
+		// otherwise start over under the exclusive latch, splitting pages as needed
+		while(true) {
+			LockConflict conflict;
+			beginStructureChange();
+			try {
+				return splitAndInsert(tid, t);
+			}
+			catch(LockConflict e) {
+				undoStructureChange();
+				conflict = e;
+			}
+			finally {
+				endStructureChange();
+			}
+			awaitLock(tid, conflict);
+		}
+	}
+
+	/**
+	 * Insert a tuple, splitting the leaf page it belongs in, and its ancestors,
+	 * if there is no room. Called under the exclusive tree latch.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	private ArrayList<Page> splitAndInsert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// locate the root page through the root pointer page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -614,9 +1250,10 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, keyOf(t));
+		lockInsert(tid, leafPage, keyOf(t), new ArrayList<ReentrantLock>());
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));	
 		}
 
 		// insert the tuple into the leaf page
@@ -627,6 +1264,322 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Insert a batch of tuples into this BTreeFile, one at a time, marking the
+	 * pages dirtied by each insert before the next one runs.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert
+	 * @return a list of all pages that were dirtied by this operation, each listed once
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+		for (Tuple t : tuples) {
+			for (Page p : insertTuple(tid, t)) {
+				p.markDirty(true, tid);
+				dirtypages.put(p.getId(), p);
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Bulk load an empty B+ tree from the tuples of source. The tuples are
+	 * sorted on the key field (spilling sorted runs to disk if there are more
+	 * than {@link ExternalSort#DEFAULT_RUN_SIZE}) and the tree is then built
+	 * bottom-up: leaf pages are packed with about fillFactor of their capacity,
+	 * then each level of internal pages is built from the first keys of the
+	 * level below, so every page is written once and no page is ever split.
+	 * Tuples are spread evenly over each level, which keeps every page at
+	 * least half full.
+	 * <p>
+	 * The new pages are appended to the file and written directly, bypassing
+	 * the buffer pool; they only become part of the tree when the root pointer
+	 * page, which is locked READ_WRITE by tid for the duration, is updated to
+	 * point at the new root. If tid aborts, the root pointer is restored and
+	 * the new pages are left unused in the file.
+	 * 
+	 * @param tid - the transaction id
+	 * @param source - an open iterator over the tuples to load
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tree is not empty, or source has a different schema
+	 * @throws IllegalArgumentException if fillFactor is out of range
+	 */
+	public int bulkLoad(TransactionId tid, DbIterator source, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(!source.getTupleDesc().equals(td)) {
+			throw new DbException("tuple desc mismatch in bulkLoad");
+		}
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		BTreePageId oldRootId = rootPtr.getRootId();
+		if(oldRootId != null) {
+			Page oldRoot = getPage(tid, dirtypages, oldRootId, Permissions.READ_ONLY);
+			if(oldRootId.pgcateg() != BTreePageId.LEAF || ((BTreeLeafPage) oldRoot).getNumTuples() > 0) {
+				throw new DbException("bulkLoad needs an empty B+ tree");
+			}
+		}
+
+		ExternalSort sorter = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(keyFields),
+				ExternalSort.DEFAULT_RUN_SIZE);
+		while(source.hasNext()) {
+			sorter.add(source.next());
+		}
+		int numTuples = sorter.size();
+		if(numTuples == 0) {
+			return 0;
+		}
+
+		// work out the shape of the tree: the number of pages on each level,
+		// leaves first, and the page number of the first page on each level
+		BTreePageId probeId = new BTreePageId(tableid, 0, BTreePageId.LEAF);
+		BTreeLeafPage probe = new BTreeLeafPage(probeId, BTreePage.createEmptyPageData(), 
+				keyFields, compressKeys);
+		int maxTuples = probe.getMaxTuples();
+		probeId = new BTreePageId(tableid, 0, BTreePageId.INTERNAL);
+		int maxEntries = new BTreeInternalPage(probeId, BTreePage.createEmptyPageData(), 
+				keyFields, compressKeys).getMaxEntries();
+		int leafTarget = Math.max(1, (int) (maxTuples * fillFactor));
+		int childTarget = (int) (maxEntries * fillFactor) + 1;
+
+		// how many tuples fit on a compressed leaf depends on how much their
+		// keys share, so those leaves are written first
+		ArrayList<Integer> levelSizes = new ArrayList<Integer>();
+		int firstLeaf = numPages() + 1;
+		Iterator<Tuple> it = sorter.sorted();
+		Field[] firstKeys = null;
+		if(probe.compressed) {
+			firstKeys = writeCompressedLeaves(it, firstLeaf, fillFactor);
+			levelSizes.add(firstKeys.length);
+		}
+		else {
+			levelSizes.add(pagesForLevel(numTuples, leafTarget, maxTuples));
+		}
+		while(levelSizes.get(levelSizes.size() - 1) > 1) {
+			int children = levelSizes.get(levelSizes.size() - 1);
+			levelSizes.add(pagesForLevel(children, childTarget, maxEntries + 1));
+		}
+		int[] firstPageNo = new int[levelSizes.size()];
+		firstPageNo[0] = firstLeaf;
+		for(int h = 1; h < levelSizes.size(); h++) {
+			firstPageNo[h] = firstPageNo[h - 1] + levelSizes.get(h - 1);
+		}
+
+		// write the leaves, remembering the first key on each, or set the
+		// parents of the compressed leaves already written
+		int numLeaves = levelSizes.get(0);
+		if(probe.compressed) {
+			for(int i = 0; i < numLeaves; i++) {
+				BTreeLeafPage leaf = (BTreeLeafPage) readPage(
+						new BTreePageId(tableid, firstPageNo[0] + i, BTreePageId.LEAF));
+				leaf.setParentId(parentOf(i, levelSizes, firstPageNo, 0));
+				writeNewPage(leaf);
+			}
+			numLeaves = 0;
+		}
+		else {
+			firstKeys = new Field[numLeaves];
+		}
+		for(int i = 0; i < numLeaves; i++) {
+			BTreePageId pid = new BTreePageId(tableid, firstPageNo[0] + i, BTreePageId.LEAF);
+			BTreeLeafPage leaf = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), keyFields, compressKeys);
+			int size = shareOf(i, numTuples, numLeaves);
+			for(int j = 0; j < size; j++) {
+				Tuple t = it.next();
+				if(j == 0) {
+					firstKeys[i] = keyOf(t);
+				}
+				leaf.insertTuple(t);
+			}
+			if(i > 0) {
+				leaf.setLeftSiblingId(new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF));
+			}
+			if(i < numLeaves - 1) {
+				leaf.setRightSiblingId(new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF));
+			}
+			leaf.setParentId(parentOf(i, levelSizes, firstPageNo, 0));
+			writeNewPage(leaf);
+		}
+
+		// write each level of internal pages from the one below it
+		for(int h = 1; h < levelSizes.size(); h++) {
+			int numChildren = levelSizes.get(h - 1);
+			int numPagesOnLevel = levelSizes.get(h);
+			int childCategory = (h == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+			Field[] levelFirstKeys = new Field[numPagesOnLevel];
+			int child = 0;
+			for(int i = 0; i < numPagesOnLevel; i++) {
+				BTreePageId pid = new BTreePageId(tableid, firstPageNo[h] + i, BTreePageId.INTERNAL);
+				BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), keyFields, compressKeys);
+				int size = shareOf(i, numChildren, numPagesOnLevel);
+				levelFirstKeys[i] = firstKeys[child];
+				for(int j = 1; j < size; j++) {
+					BTreePageId left = new BTreePageId(tableid, firstPageNo[h - 1] + child + j - 1, childCategory);
+					BTreePageId right = new BTreePageId(tableid, firstPageNo[h - 1] + child + j, childCategory);
+					page.insertEntry(new BTreeEntry(firstKeys[child + j], left, right));
+				}
+				child += size;
+				page.setParentId(parentOf(i, levelSizes, firstPageNo, h));
+				writeNewPage(page);
+			}
+			firstKeys = levelFirstKeys;
+		}
+
+		// publish the new tree
+		int top = levelSizes.size() - 1;
+		treeLatch.writeLock().lock();
+		try {
+			rootPtr.setRootId(new BTreePageId(tableid, firstPageNo[top], 
+					top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL));
+			rootPtr.markDirty(true, tid);
+			if(oldRootId != null) {
+				releaseLatch(oldRootId.pageNumber());
+			}
+		}
+		finally {
+			treeLatch.writeLock().unlock();
+		}
+
+		// the empty leaf that was the root is no longer part of the tree
+		if(oldRootId != null) {
+			setEmptyPage(tid, dirtypages, oldRootId.pageNumber());
+			for(Page p : dirtypages.values()) {
+				p.markDirty(true, tid);
+			}
+		}
+		return numTuples;
+	}
+
+	/**
+	 * Write sorted tuples to new leaf pages numbered from firstPageNo, for a
+	 * compressed string index. Each leaf is filled to fillFactor of its room,
+	 * and the tuples of the last two are shared between them if the last
+	 * would be less than half full. The parents of the leaves are left for
+	 * the caller to set.
+	 * 
+	 * @param it - the tuples, in key order
+	 * @param firstPageNo - the page number of the first leaf
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the key to put between each leaf and the one before it, and the
+	 * first key for the first leaf
+	 */
+	private Field[] writeCompressedLeaves(Iterator<Tuple> it, int firstPageNo, double fillFactor)
+			throws DbException, IOException {
+		ArrayList<Field> bounds = new ArrayList<Field>(); // the first and last key on each leaf
+		BTreeLeafPage prev = null;
+		BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(tableid, firstPageNo, BTreePageId.LEAF), 
+				BTreePage.createEmptyPageData(), keyFields, compressKeys);
+		int maxTuples = leaf.getMaxTuples();
+		int minEmptySlots = maxTuples - (int) (maxTuples * fillFactor);
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(leaf.getNumEmptySlots() <= minEmptySlots) {
+				BTreePageId next = new BTreePageId(tableid, leaf.getId().pageNumber() + 1, BTreePageId.LEAF);
+				leaf.setRightSiblingId(next);
+				if(prev != null) {
+					writeCompressedLeaf(prev, bounds);
+				}
+				prev = leaf;
+				leaf = new BTreeLeafPage(next, BTreePage.createEmptyPageData(), keyFields, compressKeys);
+				leaf.setLeftSiblingId(prev.getId());
+			}
+			leaf.insertTuple(t);
+		}
+		int maxEmptySlots = maxTuples - maxTuples/2;
+		if(prev != null && leaf.getNumEmptySlots() > maxEmptySlots) {
+			while(leaf.getNumEmptySlots() > prev.getNumEmptySlots() + 1) {
+				Tuple t = prev.reverseIterator().next();
+				prev.deleteTuple(t);
+				leaf.insertTuple(t);
+			}
+			// if both are still less than half full, they fit on one page
+			if(leaf.getNumEmptySlots() > maxEmptySlots) {
+				Iterator<Tuple> rest = leaf.iterator();
+				while(rest.hasNext()) {
+					Tuple t = rest.next();
+					leaf.deleteTuple(t);
+					prev.insertTuple(t);
+				}
+				prev.setRightSiblingId(null);
+				leaf = prev;
+				prev = null;
+			}
+		}
+		if(prev != null) {
+			writeCompressedLeaf(prev, bounds);
+		}
+		writeCompressedLeaf(leaf, bounds);
+
+		Field[] separators = new Field[bounds.size() / 2];
+		separators[0] = bounds.get(0);
+		for(int i = 1; i < separators.length; i++) {
+			separators[i] = leaf.separator(bounds.get(2 * i - 1), bounds.get(2 * i));
+		}
+		return separators;
+	}
+
+	/**
+	 * Write a leaf built by writeCompressedLeaves, adding its first and last
+	 * key to bounds.
+	 */
+	private void writeCompressedLeaf(BTreeLeafPage leaf, ArrayList<Field> bounds) throws IOException {
+		bounds.add(keyOf(leaf.iterator().next()));
+		bounds.add(keyOf(leaf.reverseIterator().next()));
+		writeNewPage(leaf);
+	}
+
+	/**
+	 * Number of pages needed on a level holding n items (tuples or child
+	 * pointers), aiming for target items per page. Uses fewer, fuller pages
+	 * rather than leaving a short last page, but never more than max per
+	 * page; with n spread evenly this keeps every page at least half full.
+	 */
+	private static int pagesForLevel(int n, int target, int max) {
+		return Math.max((n + max - 1) / max, Math.max(1, n / target));
+	}
+
+	/**
+	 * The number of the n items on a level that go to page i of numPages,
+	 * spreading them evenly.
+	 */
+	private static int shareOf(int i, int n, int numPages) {
+		return n / numPages + (i < n % numPages ? 1 : 0);
+	}
+
+	/**
+	 * The parent of page i on level h of a bulk-loaded tree, or the root
+	 * pointer page if level h is the top.
+	 */
+	private BTreePageId parentOf(int i, ArrayList<Integer> levelSizes, int[] firstPageNo, int h) {
+		if(h == levelSizes.size() - 1) {
+			return BTreeRootPtrPage.getId(tableid);
+		}
+		int n = levelSizes.get(h);
+		int parents = levelSizes.get(h + 1);
+		int base = n / parents;
+		int rem = n % parents;
+		int parent = (i < rem * (base + 1)) ? i / (base + 1) : rem + (i - rem * (base + 1)) / base;
+		return new BTreePageId(tableid, firstPageNo[h + 1] + parent, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Write a page built by bulkLoad straight to disk, dropping any stale
+	 * copy of that page number from the buffer pool.
+	 */
+	private void writeNewPage(BTreePage page) throws IOException {
+		Database.getBufferPool().discardPage(page.getId());
+		writePage(page);
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -747,16 +1700,13 @@ public class BTreeFile implements DbFile {
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
 
-		int totalSize = page.getNumTuples() + sibling.getNumTuples();
-		int halfSize = totalSize / 2;
-		int stealSize = halfSize - page.getNumTuples();
-
+		// even out the empty slots, which on a compressed page count room
 		Iterator<Tuple> sibTupIter;
 		if (isRightSibling) sibTupIter = sibling.iterator();
 		else sibTupIter = sibling.reverseIterator();
 
 		Tuple stealTup = null;
-		for (int i = 0; i < stealSize; ++i) {
+		while (page.getNumEmptySlots() > sibling.getNumEmptySlots() + 1) {
 			if (!sibTupIter.hasNext()) {
 				throw new DbException("Not enough tuples to steal!");
 			}
@@ -768,12 +1718,12 @@ public class BTreeFile implements DbFile {
 		// pick the first tuple in the right-hand page
 		assert stealTup != null;
 
-		Tuple keyTup;
-		if (isRightSibling) keyTup = sibTupIter.next();
-		else keyTup = stealTup;
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
 
-		// add this tuple to parent
-		entry.setKey(keyTup.getField(this.keyField));
+		// add the key between them to parent
+		entry.setKey(left.separator(keyOf(left.reverseIterator().next()),
+				keyOf(right.iterator().next())));
 		parent.updateEntry(entry);
 
 	}
@@ -1130,11 +2080,76 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+
+		// under the shared latch, delete the tuple if that leaves its page at least
+		// half full, or the page is the root
+		while(true) {
+			LockConflict conflict;
+			ArrayList<ReentrantLock> latches = new ArrayList<ReentrantLock>();
+			treeLatch.readLock().lock();
+			try {
+				BTreeLeafPage page = findTuple(tid, new HashMap<PageId, Page>(), t);
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() >= maxEmptySlots 
+						&& page.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+					break;
+				}
+				latch(page.getId(), latches);
+				lockDelete(tid, page, keyOf(t), latches);
+				page.deleteTuple(t);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(page);
+				return dirtyPagesArr;
+			}
+			catch(IOException e) {
+				throw new DbException("could not create the root pointer page");
+			}
+			catch(LockConflict e) {
+				conflict = e;
+			}
+			finally {
+				unlatch(latches);
+				treeLatch.readLock().unlock();
+			}
+			awaitLock(tid, conflict);
+		}
+
+		// otherwise start over under the exclusive latch, merging or redistributing
+		while(true) {
+			LockConflict conflict;
+			beginStructureChange();
+			try {
+				return deleteAndRebalance(tid, t);
+			}
+			catch(LockConflict e) {
+				undoStructureChange();
+				t.setRecordId(rid);
+				conflict = e;
+			}
+			finally {
+				endStructureChange();
+			}
+			awaitLock(tid, conflict);
+		}
+	}
+
+	/**
+	 * Delete a tuple, then steal tuples from a sibling of its page or merge the
+	 * page with one, if it is less than half full. Called under the exclusive
+	 * tree latch.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #deleteTuple(TransactionId, Tuple)
+	 */
+	private ArrayList<Page> deleteAndRebalance(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		BTreeLeafPage page = findTuple(tid, dirtypages, t);
+		lockDelete(tid, page, keyOf(t), new ArrayList<ReentrantLock>());
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1150,8 +2165,187 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Find and lock, with READ_WRITE permission, the leaf page holding a tuple
+	 * equal to t, and point the record id of t at it. Index scans don't lock
+	 * the pages they read, so the tuple may have been moved by a split or
+	 * merge since t was read.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to find
+	 * @return the leaf page holding the tuple
+	 * @throws DbException if there is no such tuple
+	 */
+	private BTreeLeafPage findTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null) {
+			throw new DbException("tried to delete tuple with null rid");
+		}
+		BTreePageId pid = new BTreePageId(tableid, rid.getPageId().pageNumber(), BTreePageId.LEAF);
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		if(sameTuple(page.getTuple(rid.tupleno()), t)) {
+			return page;
+		}
+
+		// look for it among the tuples with the same key
+		Field key = keyOf(t);
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		page = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+		while(true) {
+			Iterator<Tuple> it = page.iterator(key);
+			while(it.hasNext()) {
+				Tuple u = it.next();
+				if(!keyOf(u).equals(key)) {
+					throw new DbException("tried to delete null tuple.");
+				}
+				if(sameTuple(u, t)) {
+					t.setRecordId(u.getRecordId());
+					return page;
+				}
+			}
+			if(page.getRightSiblingId() == null) {
+				throw new DbException("tried to delete null tuple.");
+			}
+			page = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * @return true if a is a tuple with the same field values as b
+	 */
+	private static boolean sameTuple(Tuple a, Tuple b) {
+		if(a == null) {
+			return false;
+		}
+		for(int i = 0; i < b.getTupleDesc().numFields(); i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next tuples of an index scan, under key-range locks rather
+	 * than locks on the leaf pages. Every key read from the range is locked
+	 * S, with the gap below it, and so are the first key past the range and
+	 * the gap below that, so no tuple can be inserted into the range or
+	 * deleted from it until tid completes. The gap below a key the range
+	 * starts at, and the one above a key it ends at, are outside the range
+	 * and are left alone: a lookup of a key that exists locks only that key.
+	 * A bound that is a prefix of a composite key stands for all the keys
+	 * starting with it, so the gaps beside those are inside the range.
+	 * <p>
+	 * Each call reads the keys following from, stopping at the first new key
+	 * after it has read to the end of a leaf page, so all the tuples with one
+	 * key are read by the same call.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @param from - the key returned by the previous call, or null to start the scan
+	 * @param out - the list to add the tuples that match ipred to
+	 * @return the largest key read, to pass to the next call, or null if the
+	 * scan is complete
+	 */
+	Field readRange(TransactionId tid, IndexPredicate ipred, Field from, ArrayList<Tuple> out)
+			throws DbException, TransactionAbortedException {
+		Op op = ipred.getOp();
+		Field bound = asKey(ipred.getField());
+		Op endOp = ipred.getEndOp();
+		Field end = endOp == null ? null : asKey(ipred.getEndField());
+		// the range of keys to read: those from low, if not null, to high
+		Field low = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ ? bound : null;
+		Op lowOp = op == Op.GREATER_THAN ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ;
+		Field high = end != null ? end : op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ ? bound : null;
+		Op highOp = end != null ? endOp : op == Op.LESS_THAN ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ;
+		Field start = from != null ? from : low;
+		while(true) {
+			LockConflict conflict;
+			ArrayList<ReentrantLock> latches = new ArrayList<ReentrantLock>();
+			treeLatch.readLock().lock();
+			try {
+				out.clear();
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+				ArrayList<Field> keys = new ArrayList<Field>();
+				Field next = null; // the first key past the range, or null for the end of the index
+				boolean more = false;
+				if(rootId != null) {
+					BTreeLeafPage page = latchLeaf(findLeafId(tid, dirtypages, rootId, start), latches);
+					Iterator<Tuple> it = start == null ? page.iterator() : page.iterator(start);
+					boolean newPage = false;
+					while(true) {
+						if(!it.hasNext()) {
+							BTreePageId right = page.getRightSiblingId();
+							if(right == null) {
+								break;
+							}
+							page = latchLeaf(right, latches);
+							it = page.iterator();
+							newPage = true;
+							continue;
+						}
+						Tuple t = it.next();
+						Field k = keyOf(t);
+						if((from != null && k.compare(Op.LESS_THAN_OR_EQ, from)) 
+								|| (low != null && !k.compare(lowOp, low))) {
+							// read by the previous call, or below the range
+							continue;
+						}
+						if(high != null && !k.compare(highOp, high)) {
+							next = k;
+							break;
+						}
+						if(keys.isEmpty() || !k.equals(keys.get(keys.size() - 1))) {
+							if(newPage && !keys.isEmpty()) {
+								more = true;
+								break;
+							}
+							keys.add(k);
+						}
+						if(k.compare(op, bound) && (end == null || k.compare(endOp, end))) {
+							out.add(t);
+						}
+					}
+				}
+
+				// lock everything read before returning any of it
+				for(Field k : keys) {
+					lockRange(tid, k, false, Mode.S);
+					if(!(low != null && lowOp == Op.GREATER_THAN_OR_EQ && k.equals(low))) {
+						lockRange(tid, k, true, Mode.S);
+					}
+				}
+				Field last = keys.isEmpty() ? from : keys.get(keys.size() - 1);
+				if(more) {
+					return last;
+				}
+				if(!(high != null && highOp == Op.LESS_THAN_OR_EQ && last != null && last.equals(high))) {
+					if(next != null) {
+						lockRange(tid, next, false, Mode.S);
+					}
+					lockRange(tid, next, true, Mode.S);
+				}
+				return null;
+			}
+			catch(IOException e) {
+				throw new DbException("could not create the root pointer page");
+			}
+			catch(LockConflict e) {
+				conflict = e;
+			}
+			finally {
+				unlatch(latches);
+				treeLatch.readLock().unlock();
+			}
+			awaitLock(tid, conflict);
+		}
+	}
+
+	/**
+	 * Get the root pointer page, with a read lock unless the tree latch is held. 
+	 * Create the root pointer page and root page if necessary.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
@@ -1166,7 +2360,7 @@ public class BTreeFile implements DbFile {
 				// create the root pointer page and the root page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData(compressKeys);
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
@@ -1174,8 +2368,16 @@ public class BTreeFile implements DbFile {
 			}
 		}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(latched() && !dirtypages.containsKey(rootPtrId)) {
+			// a root set by bulkLoad is not published under the latch, so read the
+			// root pointer page under a read lock while another transaction has it dirty
+			TransactionId dirtier = Database.getBufferPool().getPageUnlocked(rootPtrId).isDirty();
+			if(dirtier != null && dirtier != BufferPool.LOGGED && !dirtier.equals(tid)) {
+				return (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+			}
+		}
+		return (BTreeRootPtrPage) getStructurePage(tid, dirtypages, rootPtrId);
 	}
 
 	/**
@@ -1198,13 +2400,13 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getStructurePage(tid, dirtypages, headerId);
 			int headerPageCount = 0;
 			// try to find a header page with an empty slot
 			while(headerPage != null && headerPage.getEmptySlot() == -1) {
 				headerId = headerPage.getNextPageId();
 				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+					headerPage = (BTreeHeaderPage) getStructurePage(tid, dirtypages, headerId);
 					headerPageCount++;
 				}
 				else {
@@ -1223,15 +2425,25 @@ public class BTreeFile implements DbFile {
 
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+		if(headerId == null) {
+			Integer spare = treeLatch.isWriteLockedByCurrentThread() ? sparePages.poll() : null;
+			if(spare != null) {
+				// reuse a page added by a structure change that was undone
+				emptyPageNo = spare;
+			}
+			else {
+				synchronized(this) {
+					// create the new page
+					BufferedOutputStream bw = new BufferedOutputStream(
+							new FileOutputStream(f, true));
+					byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+					bw.write(emptyData);
+					bw.close();
+					emptyPageNo = numPages();
+				}
+			}
+			if(treeLatch.isWriteLockedByCurrentThread()) {
+				appended.add(emptyPageNo);
 			}
 		}
 
@@ -1261,10 +2473,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		pageChannel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1289,6 +2498,8 @@ public class BTreeFile implements DbFile {
 	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException, IOException, TransactionAbortedException {
 
+		releaseLatch(emptyPageNo);
+
 		// if this is the last page in the file (and not the only page), just 
 		// truncate the file
 		// @TODO: Commented out because we should probably do this somewhere else in case the transaction aborts....
@@ -1330,7 +2541,7 @@ public class BTreeFile implements DbFile {
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
 		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getStructurePage(tid, dirtypages, headerId);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
 			headerPageCount++;
@@ -1363,8 +2574,11 @@ public class BTreeFile implements DbFile {
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
 	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
-	 * 
+	 * acquired. On a B+ tree keyed on several fields, the predicate compares
+	 * keys to a {@link CompositeField}, or to a value of the first field alone,
+	 * and may be a range over a prefix of the key; see
+	 * {@link IndexPredicate#IndexPredicate(Predicate.Op, Field, Predicate.Op, Field)}.
+	 *
 	 * @param tid - the transaction id
 	 * @param ipred - the index predicate value to filter on
 	 * @return an iterator for the filtered tuples
@@ -1412,11 +2626,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1474,7 +2685,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	Field resume = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1493,26 +2704,27 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * Open this iterator by reading the first tuples matching the predicate
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		}
-		it = curp.iterator();
+		resume = null;
+		read();
+	}
+
+	/**
+	 * Read the next tuples matching the predicate, locking the key range they
+	 * come from.
+	 * @see BTreeFile#readRange(TransactionId, IndexPredicate, Field, ArrayList)
+	 */
+	private void read() throws DbException, TransactionAbortedException {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		resume = f.readRange(tid, ipred, resume, tuples);
+		it = tuples.iterator();
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * Read the next tuple either from the tuples read last, or by reading the
+	 * tuples that follow them.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
@@ -1520,35 +2732,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
 		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
+			if (it.hasNext()) {
+				return it.next();
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			if (resume == null) {
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-			}
+			read();
 		}
 
 		return null;
@@ -23,6 +23,8 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
+	// contents as of the last commit, taken on the first modification
+	// after it; null while the page is unmodified
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
 
@@ -60,14 +62,13 @@ public class BTreeHeaderPage implements Page {
 			header[i] = dis.readByte();
 
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		captureBeforeImage();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -97,6 +98,8 @@ public class BTreeHeaderPage implements Page {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null)
+				oldDataRef = getPageData();
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -109,7 +112,53 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
+		}
+	}
+
+	public int getBeforeImageSize() {
+		synchronized(oldDataLock)
+		{
+			return oldData == null ? 0 : oldData.length;
+		}
+	}
+
+	/**
+	 * Saves the current contents as the before image, unless one is already
+	 * held. Called by every method that modifies the page, before it does so.
+	 */
+	private void captureBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
+		}
+	}
+
+	/**
+	 * @return the saved before image, or null if the page has not been
+	 * modified since it was committed
+	 */
+	byte[] savedBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
+	/**
+	 * Put back, in place, contents saved with getPageData() and the before
+	 * image saved at the same time.
+	 * @see BTreePage#restore(byte[], byte[])
+	 */
+	void restore(byte[] data, byte[] before) throws IOException {
+		BTreeHeaderPage saved = new BTreeHeaderPage(pid, data);
+		nextPage = saved.nextPage;
+		prevPage = saved.prevPage;
+		System.arraycopy(saved.header, 0, header, 0, header.length);
+		synchronized(oldDataLock)
+		{
+			oldData = before;
 		}
 	}
 
@@ -211,6 +260,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +281,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -277,6 +328,7 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
+		captureBeforeImage();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -22,14 +22,14 @@ public class BTreeInternalPage extends BTreePage {
 	private int childCategory; // either leaf or internal
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
-		Field prev = lowerBound;
+		Field prev = lowest(lowerBound);
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
 
 		Iterator<BTreeEntry> it  = this.iterator();
 		while (it.hasNext()) {
 			Field f = it.next().getKey();
 			assert(null == prev || prev.compare(Op.LESS_THAN_OR_EQ,f));
-			prev = f;
+			prev = lowest(f);
 		}
 
 		if (null != upperBound && null != prev){
@@ -57,6 +57,13 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page of a compressed string index stores its first key in full after
+	 * the child page category, as a one byte length followed by
+	 * {@link Type#STRING_LEN} bytes. Each key is then stored as the number of
+	 * leading characters it shares with the key before it, or with the first
+	 * key for the first one, and the characters after those: a one byte
+	 * count, a one byte length with the high bit set if the key was cut
+	 * short, and {@link BTreePage#getSeparatorLength()} bytes.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,7 +73,33 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on one or more fields.
+	 * @see BTreePage#BTreePage(BTreePageId, int[])
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index that compresses string keys if
+	 * compressKeys is set.
+	 * @see BTreePage#BTreePage(BTreePageId, int[], boolean)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 * @param compressKeys - whether the index compresses string keys
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean compressKeys) throws IOException {
+		super(id, keyFields, compressKeys);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -81,6 +114,15 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		// read the first key
+		String prev = "";
+		if (compressed) {
+			byte bs[] = new byte[Type.STRING_LEN];
+			int len = dis.readUnsignedByte();
+			dis.readFully(bs);
+			prev = new String(bs, 0, len);
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -92,8 +134,11 @@ public class BTreeInternalPage extends BTreePage {
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
+			for (int i=1; i<keys.length; i++) {
+				keys[i] = readNextKey(dis,i,prev);
+				if (compressed && keys[i] != null)
+					prev = ((StringField) lowest(keys[i])).getValue();
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -107,23 +152,90 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + getFirstKeySize() * 8; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return the number of bytes a key takes on this page
+	 */
+	private int getKeySize() {
+		if(compressed) {
+			return 2 + getSeparatorLength();
+		}
+		return getKeyLen();
+	}
+
+	/**
+	 * @return the number of bytes the first key takes in full on this page
+	 */
+	private int getFirstKeySize() {
+		return compressed ? 1 + Type.STRING_LEN : 0;
+	}
+
+	/**
+	 * @return whether the key was cut short
+	 */
+	private static boolean isCut(Field key) {
+		return key != lowest(key);
+	}
+
+	/**
+	 * Cut the keys of a compressed page that run more than the separator
+	 * length past the characters they share with the key before them. The
+	 * first key is kept whole.
+	 */
+	private void cutKeys() {
+		if (!compressed)
+			return;
+		String prev = null;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			String key = ((StringField) lowest(keys[i])).getValue();
+			if (prev != null) {
+				int max = sharedPrefix(prev, key) + getSeparatorLength();
+				if (key.length() > max) {
+					key = key.substring(0, max);
+					keys[i] = new StringField(key + CUT, Type.STRING_LEN + 1);
+				}
+			}
+			prev = key;
+		}
+	}
+
+	/**
+	 * The key a search compares with the key in a slot. A key cut short
+	 * compares greater than the keys after it that start with what is left of
+	 * it, so it is compared as the smallest of itself and the keys up to the
+	 * next one that was not cut; that keeps the keys a search compares with in
+	 * order, and the search goes left of the key only if it would go left of
+	 * the one it was cut from.
+	 */
+	private Field routingKey(int slot) {
+		Field key = keys[slot];
+		for (int i=slot+1; isCut(keys[slot]) && i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (keys[i].compare(Op.LESS_THAN, key))
+				key = keys[i];
+			if (!isCut(keys[i]))
+				break;
+		}
+		return key;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -136,16 +248,24 @@ public class BTreeInternalPage extends BTreePage {
 		return hb;
 	}
 
+	void restore(byte[] data, byte[] before) throws IOException {
+		BTreeInternalPage saved = new BTreeInternalPage(pid, data, keyFields, compressed);
+		parent = saved.parent;
+		childCategory = saved.childCategory;
+		System.arraycopy(saved.header, 0, header, 0, header.length);
+		System.arraycopy(saved.keys, 0, keys, 0, keys.length);
+		System.arraycopy(saved.children, 0, children, 0, children.length);
+		synchronized(oldDataLock)
+		{
+			oldData = before;
+		}
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,getBeforeImageData(),keyFields,compressed);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -154,21 +274,14 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read keys from the source file.
 	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
+	private Field readNextKey(DataInputStream dis, int slotId, String prev) throws NoSuchElementException {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -178,10 +291,24 @@ public class BTreeInternalPage extends BTreePage {
 			return null;
 		}
 
+		if (compressed) {
+			try {
+				byte bs[] = new byte[getSeparatorLength()];
+				String shared = prev.substring(0, dis.readUnsignedByte());
+				int len = dis.readUnsignedByte();
+				dis.readFully(bs);
+				if ((len & 0x80) != 0)
+					return new StringField(shared + new String(bs, 0, len & 0x7f) + CUT, Type.STRING_LEN + 1);
+				return new StringField(shared + new String(bs, 0, len), Type.STRING_LEN);
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading key");
+			}
+		}
+
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -252,6 +379,24 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the first key
+		String prev = "";
+		if (compressed) {
+			for (int i=1; i<keys.length; i++) {
+				if (isSlotUsed(i)) {
+					prev = ((StringField) lowest(keys[i])).getValue();
+					break;
+				}
+			}
+			try {
+				dos.writeByte(prev.length());
+				dos.writeBytes(prev);
+				dos.write(new byte[Type.STRING_LEN - prev.length()]);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -269,7 +414,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -282,7 +427,19 @@ public class BTreeInternalPage extends BTreePage {
 
 			// non-empty slot
 			try {
-				keys[i].serialize(dos);
+				if (compressed) {
+					String key = ((StringField) lowest(keys[i])).getValue();
+					int shared = sharedPrefix(prev, key);
+					String rest = key.substring(shared);
+					dos.writeByte(shared);
+					dos.writeByte(isCut(keys[i]) ? rest.length() | 0x80 : rest.length());
+					dos.writeBytes(rest);
+					dos.write(new byte[getSeparatorLength() - rest.length()]);
+					prev = key;
+				}
+				else {
+					keys[i].serialize(dos);
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -315,8 +472,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + getFirstKeySize() + header.length + 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -345,6 +502,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		captureBeforeImage();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -365,6 +523,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 		e.setRecordId(null);
+		cutKeys();
 	}
 
 	/**
@@ -402,6 +561,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		captureBeforeImage();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -409,10 +569,11 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to update null entry.");
+		Field key = e.getKey();
 		
 		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+				if(keys[i].compare(Op.LESS_THAN, lowest(key))) {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be less than or equal to keys on the right");
 				}
@@ -421,7 +582,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		for(int i = rid.tupleno() - 1; i >= 0; i--) {
 			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+				if(i > 0 && lowest(keys[i]).compare(Op.GREATER_THAN, key)) {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
@@ -430,7 +591,8 @@ public class BTreeInternalPage extends BTreePage {
 			}	
 		}
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
-		keys[rid.tupleno()] = e.getKey();
+		keys[rid.tupleno()] = key;
+		cutKeys();
 	}
 
 	/**
@@ -441,7 +603,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		captureBeforeImage();
+		if (!isKeyType(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -455,15 +618,17 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
+		Field key = e.getKey();
 
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
-			keys[1] = e.getKey();
+			keys[1] = key;
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
+			cutKeys();
 			return;
 		}
 
@@ -484,7 +649,7 @@ public class BTreeInternalPage extends BTreePage {
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
 				if(children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+					if(i > 0 && lowest(keys[i]).compare(Op.GREATER_THAN, key)) {
 						throw new DbException("attempt to insert invalid entry with left child " + 
 								e.getLeftChild().pageNumber() + ", right child " + 
 								e.getRightChild().pageNumber() + " and key " + e.getKey() +
@@ -499,7 +664,7 @@ public class BTreeInternalPage extends BTreePage {
 				}
 				else if(lessOrEqKey != -1) {
 					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+					if(keys[i].compare(Op.LESS_THAN, lowest(key))) {
 						throw new DbException("attempt to insert invalid entry with left child " + 
 								e.getLeftChild().pageNumber() + ", right child " + 
 								e.getRightChild().pageNumber() + " and key " + e.getKey() +
@@ -540,9 +705,10 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
+		keys[goodSlot] = key;
 		children[goodSlot] = e.getRightChild().pageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		cutKeys();
 	}
 
 	/**
@@ -617,6 +783,85 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * Finds the child to follow when searching for a key, by binary search
+	 * over the key slots rather than by walking the entries. This is the
+	 * left child of the first entry whose key is greater than or equal to f,
+	 * or the right child of the last entry if there is no such entry. Empty
+	 * slots between entries are skipped over. In a compressed string index a
+	 * key cut short is compared as described at {@link #routingKey}.
+	 * @param f - the key to search for
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	BTreePageId findChild(Field f) {
+		int found = findSlot(f);
+
+		// the child to follow is in the closest used slot before found
+		int slot = (found == -1 ? numSlots : found) - 1;
+		while (slot > 0 && !isSlotUsed(slot))
+			slot--;
+		if (found == -1 && slot == 0)
+			return null;
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * @return the first used slot whose key a search for f goes left of, or
+	 * -1 if there is none
+	 */
+	private int findSlot(Field f) {
+		int lo = 1;
+		int hi = numSlots - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int used = mid;
+			while (used <= hi && !isSlotUsed(used))
+				used++;
+			if (used > hi) {
+				hi = mid - 1;
+			}
+			else if (f.compare(Op.LESS_THAN_OR_EQ, routingKey(used))) {
+				found = used;
+				hi = mid - 1;
+			}
+			else {
+				lo = used + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The entries whose keys were cut short that a search for f may have to
+	 * go right of, in order: that of the key findChild(f) goes left of, if it
+	 * was cut short and f is not less than what is left of it, and so on for
+	 * the keys after it.
+	 * @param f - the key to search for
+	 * @return the entries, which are none unless keys are compressed
+	 */
+	List<BTreeEntry> findCutEntries(Field f) {
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		int found = compressed ? findSlot(f) : -1;
+		if (found == -1)
+			return entries;
+		int left = found - 1;
+		while (!isSlotUsed(left))
+			left--;
+		for (int i=found; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (!isCut(keys[i]) || f.compare(Op.LESS_THAN, lowest(keys[i])))
+				break;
+			BTreeEntry e = new BTreeEntry(keys[i], new BTreePageId(pid.getTableId(), children[left], childCategory),
+					new BTreePageId(pid.getTableId(), children[i], childCategory));
+			e.setRecordId(new RecordId(pid, i));
+			entries.add(e);
+			left = i;
+		}
+		return entries;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
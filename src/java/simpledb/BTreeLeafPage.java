@@ -20,14 +20,14 @@ public class BTreeLeafPage extends BTreePage {
 	private int rightSibling; // leaf node or 0
 
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
-		Field prev = lowerBound;
+		Field prev = lowest(lowerBound);
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(t)));
+			prev = keyOf(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -36,7 +36,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(getNumEmptySlots() <= getMaxTuples() - getMaxTuples()/2);
 		}
 	}
 
@@ -53,6 +53,14 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * A page with a compressed string key has more slots than that, enough
+	 * for tuples whose keys are all the same, and keeps the used ones packed
+	 * in order after the header. Each key is stored as the number of leading
+	 * characters it shares with the key before it, the number of characters
+	 * after those, and those characters, each count taking one byte; the
+	 * other fields follow in their usual format. Such a page has room for
+	 * another tuple while there is room left for one whose key shares nothing,
+	 * and getMaxTuples() is the number of those that fit on an empty page.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -62,8 +70,34 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxTuples();
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on one or more fields.
+	 * @see BTreePage#BTreePage(BTreePageId, int[])
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, false);
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index that compresses string keys if
+	 * compressKeys is set.
+	 * @see BTreePage#BTreePage(BTreePageId, int[], boolean)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 * @param compressKeys - whether the index compresses string keys
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields, boolean compressKeys) throws IOException {
+		super(id, keyFields, compressKeys);
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -96,20 +130,29 @@ public class BTreeLeafPage extends BTreePage {
 		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
+			String prev = "";
+			for (int i=0; i<tuples.length; i++) {
+				if (compressed) {
+					if (isSlotUsed(i)) {
+						tuples[i] = readCompressedTuple(dis, i, prev);
+						prev = getKey(tuples[i]);
+					}
+				}
+				else
+					tuples[i] = readNextTuple(dis,i);
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
+		if (compressed)
+			return (BufferPool.getPageSize() - 3 * INDEX_SIZE - getHeaderSize()) / getMaxTupleSize();
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
@@ -117,27 +160,85 @@ public class BTreeLeafPage extends BTreePage {
 		return tuplesPerPage;
 	}
 
+	/**
+	 * @return the number of tuple slots on this page
+	 */
+	int getNumSlots() {
+		if (!compressed)
+			return getMaxTuples();
+		// enough for tuples whose keys take no room beyond their two counts
+		int bitsPerSlot = (2 + getRestSize()) * 8 + 1;
+		return (BufferPool.getPageSize()*8 - 3 * INDEX_SIZE * 8) / bitsPerSlot;
+	}
+
+	/**
+	 * @return the number of bytes the fields other than the key take
+	 */
+	private int getRestSize() {
+		return td.getSize() - Type.STRING_TYPE.getLen();
+	}
+
+	/**
+	 * @return the number of bytes a tuple takes on a compressed page if its
+	 * key shares nothing with the one before it
+	 */
+	private int getMaxTupleSize() {
+		return 2 + Type.STRING_LEN + getRestSize();
+	}
+
+	/**
+	 * @return the number of bytes the tuples take on a compressed page
+	 */
+	private int getUsedBytes() {
+		int used = 0;
+		String prev = "";
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			String key = getKey(tuples[i]);
+			used += 2 + getRestSize() + key.length() - sharedPrefix(prev, key);
+			prev = key;
+		}
+		return used;
+	}
+
+	/**
+	 * @return the string key of a tuple, as much of it as is stored
+	 */
+	private String getKey(Tuple t) {
+		String key = ((StringField) t.getField(keyField)).getValue();
+		return key.length() > Type.STRING_LEN ? key.substring(0, Type.STRING_LEN) : key;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		int tuplesPerPage = getNumSlots();
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	void restore(byte[] data, byte[] before) throws IOException {
+		BTreeLeafPage saved = new BTreeLeafPage(pid, data, keyFields, compressed);
+		parent = saved.parent;
+		leftSibling = saved.leftSibling;
+		rightSibling = saved.rightSibling;
+		System.arraycopy(saved.header, 0, header, 0, header.length);
+		System.arraycopy(saved.tuples, 0, tuples, 0, tuples.length);
+		synchronized(oldDataLock)
+		{
+			oldData = before;
+		}
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,getBeforeImageData(),keyFields,compressed);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -146,13 +247,6 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -187,6 +281,33 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read a tuple from a compressed page.
+	 * @param prev - the key of the tuple before it, or "" if it is the first
+	 */
+	private Tuple readCompressedTuple(DataInputStream dis, int slotId, String prev) throws NoSuchElementException {
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			int shared = dis.readUnsignedByte();
+			byte bs[] = new byte[dis.readUnsignedByte()];
+			dis.readFully(bs);
+			t.setField(keyField, new StringField(prev.substring(0, shared) + new String(bs), Type.STRING_LEN));
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (IOException e) {
+			throw new NoSuchElementException("error reading tuple");
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -234,8 +355,30 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// create the tuples
+		String prev = "";
 		for (int i=0; i<tuples.length; i++) {
 
+			// a compressed page only holds the used slots
+			if (compressed) {
+				if (!isSlotUsed(i))
+					continue;
+				String key = getKey(tuples[i]);
+				int shared = sharedPrefix(prev, key);
+				try {
+					dos.writeByte(shared);
+					dos.writeByte(key.length() - shared);
+					dos.writeBytes(key.substring(shared));
+					for (int j=0; j<td.numFields(); j++) {
+						if (j != keyField)
+							tuples[i].getField(j).serialize(dos);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				prev = key;
+				continue;
+			}
+
 			// empty slot
 			if (!isSlotUsed(i)) {
 				for (int j=0; j<td.getSize(); j++) {
@@ -262,7 +405,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - dos.size();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -287,6 +430,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
+		captureBeforeImage();
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -307,6 +451,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
+		captureBeforeImage();
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -319,15 +464,15 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || (compressed && getNumEmptySlots() == 0))
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = keyOf(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(keyOf(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -400,6 +545,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +566,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -438,17 +585,24 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compressed page
+	 * that is the number of tuples there is room for if none of their keys
+	 * shares anything with its neighbors.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
+		int cnt = numSlots - getNumTuples();
+		if (compressed) {
+			int room = (getMaxTuples() * getMaxTupleSize() - getUsedBytes()) / getMaxTupleSize();
+			cnt = Math.min(cnt, Math.max(room, 0));
+		}
 		return cnt;
 	}
 
@@ -491,6 +645,44 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater
+	 * than or equal to f, in key order. The first such tuple is found by
+	 * binary search.
+	 */
+	Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f));
+	}
+
+	/**
+	 * Binary search over the slots of this page, skipping empty ones.
+	 * @param f - the key to search for
+	 * @return the first used slot whose key is greater than or equal to f,
+	 * or the number of slots if there is none
+	 */
+	int findSlot(Field f) {
+		int lo = 0;
+		int hi = numSlots - 1;
+		int found = numSlots;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int used = mid;
+			while (used <= hi && !isSlotUsed(used))
+				used++;
+			if (used > hi) {
+				hi = mid - 1;
+			}
+			else if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(tuples[used]))) {
+				found = used;
+				hi = mid - 1;
+			}
+			else {
+				lo = used + 1;
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +721,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -575,7 +772,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getNumSlots() - 1;
 	}
 
 	public boolean hasNext() {
@@ -19,11 +19,35 @@ public abstract class BTreePage implements Page {
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
+	/**
+	 * Number of characters an internal page of a compressed string index
+	 * keeps of a separator key past those it shares with the key before it.
+	 * Pages are read back assuming this length, so it is part of the format
+	 * of compressed files and must not change.
+	 */
+	private static final int SEPARATOR_LENGTH = 16;
+
+	/**
+	 * Marks the end of a separator key that was cut short; it sorts after
+	 * every character a key can hold, so keys starting with what is left of
+	 * the separator compare less than it.
+	 */
+	static final char CUT = '\uffff';
+
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	// the fields the index is keyed on, in order; keyField is the first
+	protected final int[] keyFields;
+	// whether the key is a string stored compressed: leaf pages keep only the
+	// part of each key not shared with the key before it, and internal pages
+	// keep separator keys no longer than needed, up to SEPARATOR_LENGTH
+	// characters past those shared with the key before
+	protected final boolean compressed;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// contents as of the last commit, taken on the first modification
+	// after it; null while the page is unmodified
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
@@ -52,9 +76,180 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a page of an index keyed on one or more fields. The key of a
+	 * tuple is its value of the field if there is one, and a
+	 * {@link CompositeField} of its values of the fields in order otherwise.
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
+		this(id, keys, false);
+	}
+
+	/**
+	 * Create a page of an index keyed on one or more fields, with string
+	 * keys stored compressed if compressKeys is set. Only an index keyed on a
+	 * single string field compresses its keys; the setting is ignored for
+	 * any other. It is part of the format of the pages, so every page of a
+	 * file must be created with the same one.
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 * @param compressKeys - whether the index compresses string keys
+	 * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean)
+	 */
+	public BTreePage(BTreePageId id, int[] keys, boolean compressKeys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compressed = compressKeys && keys.length == 1 && td.getFieldType(keyField) == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @param t - a tuple
+	 * @param keys - the fields an index is keyed on, in order
+	 * @return the key of t in the index
+	 */
+	static Field keyOf(Tuple t, int[] keys) {
+		if(keys.length == 1) {
+			return t.getField(keys[0]);
+		}
+		Field[] fields = new Field[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			fields[i] = t.getField(keys[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the key of t in the index this page belongs to
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key of this index takes uncompressed
+	 */
+	protected int getKeyLen() {
+		int len = 0;
+		for(int k : keyFields) {
+			len += td.getFieldType(k).getLen();
+		}
+		return len;
+	}
+
+	/**
+	 * Read an uncompressed key of this index, written by Field.serialize.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyField).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < keyFields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return whether f has the type of a key of this index
+	 */
+	protected boolean isKeyType(Field f) {
+		if(keyFields.length == 1) {
+			return f.getType().equals(td.getFieldType(keyField));
+		}
+		if(!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length) {
+			return false;
+		}
+		for(int i = 0; i < keyFields.length; i++) {
+			if(!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether this page belongs to an index that compresses its
+	 * string keys
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * @return the number of characters an internal page of a compressed
+	 * string index keeps of a separator key past those it shares with the
+	 * key before it
+	 */
+	static int getSeparatorLength() {
+		return SEPARATOR_LENGTH;
+	}
+
+	/**
+	 * The key for a parent entry between two neighboring pages, given the
+	 * largest key on the left page and the smallest one on the right page.
+	 * That is the right key itself, unless this page belongs to an index
+	 * that compresses string keys; then it is the shortest prefix of the
+	 * right key that is not less than the left key. An internal page may cut
+	 * it shorter, see {@link #lowest}.
+	 * 
+	 * @param left - the largest key on the left page
+	 * @param right - the smallest key on the right page
+	 * @return the separator key
+	 */
+	Field separator(Field left, Field right) {
+		if(!compressed) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int n = sharedPrefix(l, r);
+		if(n < l.length()) {
+			n++; // the first character that tells them apart
+		}
+		return new StringField(r.substring(0, Math.min(n, r.length())), Type.STRING_LEN);
+	}
+
+	/**
+	 * The smallest key a separator key stands for. A separator cut short ends
+	 * with {@link #CUT}, so it compares greater than every key starting with
+	 * what is left of it, though keys starting with that may belong on either
+	 * side of it; a search for one of them looks at the smallest key under
+	 * the child to the right to decide.
+	 * 
+	 * @param separator - the separator key, or null
+	 * @return the separator without the mark if it was cut short, or else
+	 * the separator itself
+	 */
+	static Field lowest(Field separator) {
+		if(!(separator instanceof StringField)) {
+			return separator;
+		}
+		String s = ((StringField) separator).getValue();
+		if(s.isEmpty() || s.charAt(s.length() - 1) != CUT) {
+			return separator;
+		}
+		return new StringField(s.substring(0, s.length() - 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the number of leading characters a and b have in common
+	 */
+	static int sharedPrefix(String a, String b) {
+		int n = 0;
+		while(n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n)) {
+			n++;
+		}
+		return n;
 	}
 
 	/**
@@ -95,6 +290,7 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			throw new DbException("parent id must not be null");
 		}
@@ -112,6 +308,68 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Saves the current contents as the before image, unless one is already
+	 * held. Called by every method that modifies the page, before it does so.
+	 */
+	protected void captureBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
+		}
+	}
+
+	/**
+	 * Returns the data for the before image: the saved copy, or the current
+	 * contents if the page has not been modified since it was committed.
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			if (oldData != null)
+				return oldData;
+		}
+		return getPageData();
+	}
+
+	/**
+	 * The current contents are committed: drop the before image.
+	 */
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+		}
+	}
+
+	public int getBeforeImageSize() {
+		synchronized(oldDataLock)
+		{
+			return oldData == null ? 0 : oldData.length;
+		}
+	}
+
+	/**
+	 * @return the saved before image, or null if the page has not been
+	 * modified since it was committed
+	 */
+	byte[] savedBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
+	/**
+	 * Put back, in place, contents saved with getPageData() and the before
+	 * image saved at the same time. Used to undo a change to the structure
+	 * of a BTreeFile that could not be finished.
+	 * @param data - the saved contents
+	 * @param before - the saved before image, or null
+	 */
+	abstract void restore(byte[] data, byte[] before) throws IOException;
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -12,6 +12,11 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	// set in the root category byte of a file that compresses string keys
+	private final static int COMPRESS_KEYS = 0x80;
+	// offset of the root category byte, after the root page number
+	private final static int INDEX_OF_CATEGORY = 4;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -21,7 +26,10 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private boolean compressKeys;
 
+	// contents as of the last commit, taken on the first modification
+	// after it; null while the page is unmodified
 	private byte[] oldData;
 
 	/**
@@ -31,7 +39,9 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The high bit of the category byte is set if
+	 * the file stores its string keys compressed, which files written before
+	 * that existed never do.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -39,16 +49,51 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int category = dis.readByte() & 0xff;
+		rootCategory = category & ~COMPRESS_KEYS;
+		compressKeys = (category & COMPRESS_KEYS) != 0;
 
 		// read in the header pointer
 		header = dis.readInt();
-		
-		setBeforeImage();
 	}
 
-	public void setBeforeImage() {
-		oldData = getPageData().clone();
+	public synchronized void setBeforeImage() {
+		oldData = null;
+	}
+
+	public synchronized int getBeforeImageSize() {
+		return oldData == null ? 0 : oldData.length;
+	}
+
+	/**
+	 * Saves the current contents as the before image, unless one is already
+	 * held. Called by every method that modifies the page, before it does so.
+	 */
+	private synchronized void captureBeforeImage() {
+		if (oldData == null)
+			oldData = getPageData();
+	}
+
+	/**
+	 * @return the saved before image, or null if the page has not been
+	 * modified since it was committed
+	 */
+	synchronized byte[] savedBeforeImage() {
+		return oldData;
+	}
+
+	/**
+	 * Put back, in place, contents saved with getPageData() and the before
+	 * image saved at the same time.
+	 * @see BTreePage#restore(byte[], byte[])
+	 */
+	synchronized void restore(byte[] data, byte[] before) throws IOException {
+		BTreeRootPtrPage saved = new BTreeRootPtrPage(pid, data);
+		root = saved.root;
+		rootCategory = saved.rootCategory;
+		header = saved.header;
+		compressKeys = saved.compressKeys;
+		oldData = before;
 	}
 
 	/**
@@ -91,7 +136,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | (compressKeys ? COMPRESS_KEYS : 0)));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -126,6 +171,22 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a file that compresses its string keys or not.
+	 * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean)
+	 *
+	 * @param compressKeys - whether the file compresses string keys
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(boolean compressKeys) {
+		byte[] data = createEmptyPageData();
+		if(compressKeys) {
+			data[INDEX_OF_CATEGORY] = (byte) COMPRESS_KEYS;
+		}
+		return data;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -142,7 +203,13 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			byte[] oldDataRef;
+			synchronized(this) {
+				oldDataRef = oldData;
+			}
+			if (oldDataRef == null)
+				oldDataRef = getPageData();
+			return new BTreeRootPtrPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,6 +235,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			root = 0;
 		}
@@ -200,6 +268,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			header = 0;
 		}
@@ -214,6 +283,13 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * @return whether the B+ tree stores its string keys compressed
+	 */
+	public boolean compressesKeys() {
+		return compressKeys;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
@@ -4,9 +4,22 @@ import java.io.*;
 
 import java.security.Permission;
 import java.util.*;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,6 +29,14 @@ import java.util.concurrent.LinkedBlockingQueue;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is partitioned into lock stripes by PageId hash. Loading,
+ * evicting and discarding a page only lock its stripe, and each resident page
+ * sits in a Frame with its own pin count and latch, so requests for different
+ * pages do not block each other. Disk reads happen outside the stripe lock;
+ * concurrent misses on the same page share a single read. Sequential scans
+ * can ask the pool to read pages ahead in the background with
+ * {@link #prefetchPage}.
  *
  * @Threadsafe, all fields are final
  */
@@ -25,10 +46,155 @@ public class BufferPool {
 
     private static int pageSize = PAGE_SIZE;
 
-    private ConcurrentHashMap<PageId, Page> id2Page;
+    /** Number of lock stripes the page table is partitioned into. */
+    private static final int NUM_STRIPES = 64;
+
+    /**
+     * A buffer frame holding one resident page. A frame is pinned while the
+     * buffer pool is writing it out and must not be evicted then. The frame's
+     * monitor is its latch; it is held whenever the page is written out,
+     * replaced or removed from the page table.
+     * <p>
+     * Pins are internal to the pool: getPage does not pin the page it
+     * returns, since callers have no way to unpin it, so a page in use by a
+     * caller may be evicted. Callers are kept safe by their page locks
+     * instead: a page is only evicted when it is clean or its changes are
+     * in the log, and a caller that asks for it again gets it back from
+     * disk with those changes.
+     */
+    private static class Frame {
+        volatile Page page;
+        private final AtomicInteger pinCount = new AtomicInteger(0);
+        /** loaded by read-ahead and not requested by anyone yet */
+        private boolean prefetched;
+        /**
+         * log sequence number from which committed changes of the page that
+         * are not on disk yet may need redo, or NO_LSN if there are none;
+         * changed under the latch
+         */
+        volatile long recLsn = NO_LSN;
+
+        Frame(Page page) {
+            this(page, false);
+        }
+
+        Frame(Page page, boolean prefetched) {
+            this.page = page;
+            this.prefetched = prefetched;
+        }
+
+        /** @return true if this is the first request for a read-ahead page */
+        synchronized boolean claimPrefetched() {
+            boolean was = prefetched;
+            prefetched = false;
+            return was;
+        }
+
+        void pin() {
+            pinCount.incrementAndGet();
+        }
+
+        void unpin() {
+            pinCount.decrementAndGet();
+        }
+
+        boolean isPinned() {
+            return pinCount.get() > 0;
+        }
+
+        /** Note that committed changes logged from lsn on are not on disk. */
+        synchronized void dirtiedAt(long lsn) {
+            if (recLsn == NO_LSN)
+                recLsn = lsn;
+        }
+    }
+
+    private static final long NO_LSN = -1;
+
+    /** A read of a page into the pool that is in flight. */
+    private static class PageLoad extends FutureTask<Page> {
+        /** started by read-ahead rather than by a request for the page */
+        final boolean prefetch;
+
+        PageLoad(Callable<Page> read, boolean prefetch) {
+            super(read);
+            this.prefetch = prefetch;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Frame> pageTable;
+
+    /** stripe i guards loading and removing pages whose hash maps to i */
+    private final Object[] stripes;
+
+    /** frames holding a page plus frames reserved for a page being loaded */
+    private final AtomicInteger usedFrames;
+
+    /** page reads in progress; later misses on the same page wait on these */
+    private final ConcurrentHashMap<PageId, PageLoad> inFlightLoads;
+
+    /** number of misses that waited on another request's read */
+    private final AtomicLong joinedLoads;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    private volatile int readAheadWindow;
+    private final AtomicLong prefetchesIssued;
+    private final AtomicLong prefetchHits;
+
+    /** Default number of pages the page cleaner writes per round. */
+    public static final int DEFAULT_CLEANER_PAGES = 16;
+
+    /** Background thread shared by all buffer pools for page cleaning. */
+    private static final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BufferPool-cleaner");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** Most adjacent pages the page cleaner writes with one write. */
+    private static final int MAX_WRITE_RUN = 64;
+
+    private ScheduledFuture<?> cleanerTask;
+    /** while the cleaner runs, committed pages are queued for it */
+    private volatile boolean writeBehind;
+    private final LinkedBlockingQueue<PageId> writeQueue;
+    private final Set<PageId> queuedWrites;
+    private final AtomicLong pagesCleaned;
+    private final AtomicLong cleanerWrites;
+    private final AtomicLong bytesWritten;
+
+    /** Orders pages by file and then by position in the file. */
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return Integer.compare(a.getTableId(), b.getTableId());
+            return Integer.compare(a.pageNumber(), b.pageNumber());
+        }
+    };
+
+    /** Background threads shared by all buffer pools for read-ahead. */
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BufferPool-prefetch");
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     private LockManager lockManager;
 
+    /**
+     * Marks pages whose changes are committed and in the log but not yet on
+     * disk. Such pages can be written out at any time without logging.
+     */
+    static final TransactionId LOGGED = new TransactionId();
+
+    private final ReplacementPolicy replacementPolicy;
+
 //    private ConcurrentHashMap<TransactionId, LinkedBlockingQueue<PageId>> tid2PageId;
     /* max number of pages */
     public final int MAX_NUM_PAGES;
@@ -38,17 +204,536 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of references after which LRU-K considers a page hot. */
+    public static final int DEFAULT_LRU_K = 2;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
+     * The replacement policy is chosen with the system property
+     * simpledb.BufferPool.policy, either "lruk" (the default) or "clock".
+     * The page cleaner is started if the system property
+     * simpledb.BufferPool.cleanerInterval gives an interval in
+     * milliseconds; simpledb.BufferPool.cleanerPages sets how many pages it
+     * writes per round.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, createReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the specified policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy used to pick pages to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
         this.MAX_NUM_PAGES = numPages;
-        this.id2Page = new ConcurrentHashMap<>();
+        this.pageTable = new ConcurrentHashMap<>();
+        this.stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++)
+            this.stripes[i] = new Object();
+        this.usedFrames = new AtomicInteger(0);
+        this.inFlightLoads = new ConcurrentHashMap<>();
+        this.joinedLoads = new AtomicLong(0);
+        this.readAheadWindow = Integer.getInteger("simpledb.BufferPool.readAhead", DEFAULT_READ_AHEAD_PAGES);
+        this.prefetchesIssued = new AtomicLong(0);
+        this.prefetchHits = new AtomicLong(0);
         this.lockManager = new LockManager();
+        this.replacementPolicy = policy;
 //        this.tid2PageId = new ConcurrentHashMap<>();
+        this.writeQueue = new LinkedBlockingQueue<>();
+        this.queuedWrites = ConcurrentHashMap.newKeySet();
+        this.pagesCleaned = new AtomicLong(0);
+        this.cleanerWrites = new AtomicLong(0);
+        this.bytesWritten = new AtomicLong(0);
+        long cleanerInterval = Long.getLong("simpledb.BufferPool.cleanerInterval", 0);
+        if (cleanerInterval > 0) {
+            setPageCleaner(cleanerInterval,
+                    Integer.getInteger("simpledb.BufferPool.cleanerPages", DEFAULT_CLEANER_PAGES));
+        }
+    }
+
+    private static ReplacementPolicy createReplacementPolicy(int numPages) {
+        String policy = System.getProperty("simpledb.BufferPool.policy", "lruk");
+        if (policy.equalsIgnoreCase("clock"))
+            return new ClockReplacementPolicy(numPages);
+        return new LRUKReplacementPolicy(DEFAULT_LRU_K, numPages);
+    }
+
+    /**
+     * @return the replacement policy of this buffer pool, which also exposes
+     *   hit, miss and eviction counters.
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+        return replacementPolicy;
+    }
+
+    /**
+     * @return the number of page misses that were served by waiting on a
+     *   read already in progress for the same page instead of reading it again.
+     */
+    public long getJoinedLoads() {
+        return joinedLoads.get();
+    }
+
+    /**
+     * @return the number of pages a sequential scan should read ahead of its
+     *   current page; at most a quarter of the pool so read-ahead cannot
+     *   push out everything else.
+     */
+    public int getReadAheadWindow() {
+        return Math.min(readAheadWindow, MAX_NUM_PAGES / 4);
+    }
+
+    /**
+     * Set the number of pages sequential scans read ahead; 0 disables
+     * read-ahead. The default can also be set with the system property
+     * simpledb.BufferPool.readAhead.
+     */
+    public void setReadAheadWindow(int pages) {
+        this.readAheadWindow = Math.max(pages, 0);
+    }
+
+    /** @return the number of background page reads issued by read-ahead */
+    public long getPrefetchesIssued() {
+        return prefetchesIssued.get();
+    }
+
+    /** @return the number of read-ahead pages that were later requested */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** @return the fraction of read-ahead pages that were later requested */
+    public double getPrefetchHitRate() {
+        long issued = prefetchesIssued.get();
+        return issued == 0 ? 0.0 : (double) prefetchHits.get() / issued;
+    }
+
+    /** @return the number of lock requests that had to wait for another transaction */
+    public long getLockWaits() {
+        return lockManager.getLockWaits();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds */
+    public long getLockWaitNanos() {
+        return lockManager.getLockWaitNanos();
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    public long getDeadlocksDetected() {
+        return lockManager.getDeadlocksDetected();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getLockEscalations() {
+        return lockManager.getEscalations();
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a single table lock. The default is
+     * LockManager.DEFAULT_ESCALATION_THRESHOLD, or the system property
+     * simpledb.LockManager.escalation.
+     */
+    public void setLockEscalationThreshold(int pages) {
+        lockManager.setEscalationThreshold(pages);
+    }
+
+    /**
+     * @return the number of bytes held for before images by the pages in the
+     *   pool. Pages take a before image on their first modification and drop
+     *   it when the modifying transaction commits.
+     */
+    public long getBeforeImageBytes() {
+        long bytes = 0;
+        for (Frame frame : pageTable.values()) {
+            Page page = frame.page;
+            if (page != null)
+                bytes += page.getBeforeImageSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the pages holding committed changes that are not on disk yet,
+     *   each with the log sequence number from which those changes may need
+     *   to be redone (the dirty page table of a fuzzy checkpoint)
+     * @see LogFile#logCheckpoint
+     */
+    public Map<PageId, Long> getDirtyPages() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Map.Entry<PageId, Frame> e : pageTable.entrySet()) {
+            long lsn = e.getValue().recLsn;
+            if (lsn != NO_LSN)
+                dirty.put(e.getKey(), lsn);
+        }
+        return dirty;
+    }
+
+    /**
+     * Write out up to maxPages pages whose changes are committed, oldest
+     * redo point first, so that checkpoints have less to redo and the log
+     * can be truncated further. Pages dirtied by running transactions are
+     * left alone. The pages are written in page order, adjacent ones
+     * together.
+     *
+     * @return the number of pages written
+     */
+    public int cleanPages(int maxPages) throws IOException {
+        List<Map.Entry<PageId, Long>> dirty = new ArrayList<>(getDirtyPages().entrySet());
+        Collections.sort(dirty, new Comparator<Map.Entry<PageId, Long>>() {
+            public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+        List<PageId> oldest = new ArrayList<>();
+        for (Map.Entry<PageId, Long> e : dirty) {
+            if (oldest.size() >= maxPages)
+                break;
+            Frame frame = pageTable.get(e.getKey());
+            if (frame != null && frame.page.isDirty() == LOGGED)
+                oldest.add(e.getKey());
+        }
+        return writeInOrder(oldest);
+    }
+
+    /**
+     * Write out the pages committed transactions queued for the page
+     * cleaner, in page order, adjacent ones together. A queued page that
+     * a running transaction has changed since is written too if its
+     * changes can be logged first. If a write fails, the pages stay dirty
+     * and queued for the next round.
+     *
+     * @return the number of pages written
+     */
+    public int writeQueuedPages() throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        writeQueue.drainTo(pids);
+        queuedWrites.removeAll(pids);
+        try {
+            return writeInOrder(pids);
+        } catch (IOException e) {
+            // those written are clean now and are skipped next time
+            for (PageId pid : pids)
+                queueWrite(pid);
+            throw e;
+        }
+    }
+
+    private void queueWrite(PageId pid) {
+        if (queuedWrites.add(pid))
+            writeQueue.add(pid);
+    }
+
+    /** @return the number of pages waiting for the page cleaner */
+    public int getWriteQueueDepth() {
+        return writeQueue.size();
+    }
+
+    /** @return the number of pages written by the page cleaner */
+    public long getPagesCleaned() {
+        return pagesCleaned.get();
+    }
+
+    /**
+     * @return the number of writes the page cleaner issued; each writes
+     *   one or more adjacent pages
+     */
+    public long getCleanerWrites() {
+        return cleanerWrites.get();
+    }
+
+    /** @return the number of bytes of pages this buffer pool wrote to disk */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Write the specified pages in page order, a run of adjacent pages of a
+     * file at a time.
+     *
+     * @return the number of pages written
+     */
+    private int writeInOrder(Collection<PageId> pids) throws IOException {
+        List<PageId> sorted = new ArrayList<>(pids);
+        Collections.sort(sorted, PAGE_ORDER);
+        int written = 0;
+        List<Frame> run = new ArrayList<>();
+        PageId last = null;
+        try {
+            for (PageId pid : sorted) {
+                Frame frame = pageTable.get(pid);
+                if (frame == null)
+                    continue;
+                boolean adjacent = last != null && last.getTableId() == pid.getTableId()
+                    && last.pageNumber() + 1 == pid.pageNumber();
+                if (!run.isEmpty() && (!adjacent || run.size() >= MAX_WRITE_RUN)) {
+                    written += writeRun(run);
+                    unpinAll(run);
+                }
+                frame.pin();
+                run.add(frame);
+                last = pid;
+            }
+            if (!run.isEmpty())
+                written += writeRun(run);
+        } finally {
+            unpinAll(run);
+        }
+        pagesCleaned.addAndGet(written);
+        return written;
+    }
+
+    private static void unpinAll(List<Frame> frames) {
+        for (Frame frame : frames)
+            frame.unpin();
+        frames.clear();
+    }
+
+    /**
+     * Write a run of adjacent pages of one file, whose frames the caller has
+     * pinned. Changes of running transactions are logged first, with one
+     * log force for the whole run.
+     *
+     * @return the number of pages written
+     */
+    private int writeRun(List<Frame> frames) throws IOException {
+        LogFile log = Database.getLogFile();
+        List<Page> pages = new ArrayList<>(frames.size());
+        // the dirtier whose changes may be written, or null for none
+        List<TransactionId> dirtiers = new ArrayList<>(frames.size());
+        boolean logged = false;
+        for (Frame frame : frames) {
+            Page page = frame.page;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null && dirtier != LOGGED) {
+                if (log.isActive(dirtier)) {
+                    log.logWrite(dirtier, page.getBeforeImage(), page);
+                    logged = true;
+                }
+                else {
+                    dirtier = null;
+                }
+            }
+            pages.add(page);
+            dirtiers.add(dirtier);
+        }
+        if (logged)
+            log.force();
+        return writeLatched(frames, pages, dirtiers, 0);
+    }
+
+    /**
+     * Latch frames i and on, in page order, then write the pages that are
+     * still resident and dirtied as expected, each stretch of adjacent ones
+     * with one write.
+     */
+    private int writeLatched(List<Frame> frames, List<Page> pages,
+                             List<TransactionId> dirtiers, int i) throws IOException {
+        if (i < frames.size()) {
+            synchronized (frames.get(i)) {
+                return writeLatched(frames, pages, dirtiers, i + 1);
+            }
+        }
+        int written = 0;
+        int start = 0;
+        for (int j = 0; j <= frames.size(); j++) {
+            boolean writable = false;
+            if (j < frames.size()) {
+                Page page = pages.get(j);
+                writable = dirtiers.get(j) != null && page.isDirty() == dirtiers.get(j)
+                    && frames.get(j).page == page && pageTable.get(page.getId()) == frames.get(j);
+            }
+            if (writable)
+                continue;
+            if (j > start) {
+                List<Page> stretch = pages.subList(start, j);
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(stretch.get(0).getId().getTableId());
+                dbFile.writePages(stretch);
+                for (int k = start; k < j; k++) {
+                    pages.get(k).markDirty(false, null);
+                    frames.get(k).recLsn = NO_LSN;
+                }
+                cleanerWrites.incrementAndGet();
+                bytesWritten.addAndGet((long) (j - start) * getPageSize());
+                written += j - start;
+            }
+            start = j + 1;
+        }
+        return written;
+    }
+
+    /**
+     * Run the page cleaner in the background every intervalMillis
+     * milliseconds; an interval of 0 stops it. While it runs, committed
+     * pages are queued for it, and each round writes the queued pages (see
+     * {@link #writeQueuedPages}) and then up to pagesPerRound more of the
+     * pages with the oldest redo points (see {@link #cleanPages}).
+     */
+    public synchronized void setPageCleaner(long intervalMillis, int pagesPerRound) {
+        if (cleanerTask != null)
+            cleanerTask.cancel(false);
+        cleanerTask = null;
+        writeBehind = intervalMillis > 0;
+        if (intervalMillis > 0) {
+            cleanerTask = cleaner.scheduleWithFixedDelay(new PageCleaner(this, pagesPerRound),
+                    intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * One round of page cleaning. It only refers to its pool weakly, so a
+     * pool that is replaced (see Database#resetBufferPool) can still be
+     * collected; the task then ends itself.
+     */
+    private static class PageCleaner implements Runnable {
+        private final WeakReference<BufferPool> pool;
+        private final int pagesPerRound;
+
+        PageCleaner(BufferPool pool, int pagesPerRound) {
+            this.pool = new WeakReference<>(pool);
+            this.pagesPerRound = pagesPerRound;
+        }
+
+        public void run() {
+            BufferPool bp = pool.get();
+            if (bp == null) {
+                // an exception cancels the periodic task
+                throw new CancellationException("buffer pool was discarded");
+            }
+            try {
+                bp.writeQueuedPages();
+                bp.cleanPages(pagesPerRound);
+            } catch (IOException e) {
+                // the pages stay dirty and queued; try again next round
+                Debug.log(0, "BufferPool.PageCleaner: write failed: %s", e);
+            }
+        }
+    }
+
+    /**
+     * Start reading the specified page into the pool in the background, if
+     * it is neither resident nor already being read. No lock is taken; the
+     * page must still be requested through getPage() before it is used.
+     * Read-ahead is best effort: if no page can be evicted to make room the
+     * request is dropped.
+     *
+     * @param pid the ID of the page that will probably be requested soon
+     */
+    public void prefetchPage(final PageId pid) {
+        if (pageTable.containsKey(pid) || inFlightLoads.containsKey(pid))
+            return;
+        final PageLoad load = new PageLoad(new Callable<Page>() {
+            public Page call() throws DbException {
+                return readAndInstall(pid, true);
+            }
+        }, true);
+        if (inFlightLoads.putIfAbsent(pid, load) != null)
+            return;
+        prefetchesIssued.incrementAndGet();
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    load.run();
+                } finally {
+                    inFlightLoads.remove(pid, load);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the read-ahead requests that have not run yet. Called when
+     * Database drops this pool, so that they do not run against the catalog
+     * that replaces the one they were made for.
+     */
+    void cancelPrefetches() {
+        for (PageLoad load : inFlightLoads.values()) {
+            if (load.prefetch)
+                load.cancel(false);
+        }
+    }
+
+    /** Report a request for a resident page to the replacement policy. */
+    private void recordAccess(PageId pid, Frame frame) {
+        if (frame != null && frame.claimPrefetched()) {
+            // read-ahead already reported the page as loaded; this is its
+            // first real reference
+            prefetchHits.incrementAndGet();
+        }
+        else {
+            replacementPolicy.pageAccessed(pid);
+        }
+    }
+
+    private Object stripeFor(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    /**
+     * Pages that are not pinned may be evicted if they are clean, or if
+     * their changes can be undone from the log (STEAL).
+     */
+    private final ReplacementPolicy.EvictionFilter evictable = new ReplacementPolicy.EvictionFilter() {
+        public boolean canEvict(PageId pid) {
+            Frame frame = pageTable.get(pid);
+            return frame != null && !frame.isPinned() && canWrite(frame.page.isDirty());
+        }
+    };
+
+    /**
+     * @return true if a page dirtied by the specified transaction may be
+     *   written to disk before the transaction commits
+     */
+    private static boolean canWrite(TransactionId dirtier) {
+        return dirtier == null || dirtier == LOGGED || Database.getLogFile().isActive(dirtier);
+    }
+
+    /**
+     * Claim a frame for a page about to be added, evicting a page if the
+     * pool is full. The caller must give the frame back with
+     * usedFrames.decrementAndGet() if it ends up not installing a page.
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int used = usedFrames.get();
+            if (used < MAX_NUM_PAGES) {
+                if (usedFrames.compareAndSet(used, used + 1))
+                    return;
+            }
+            else {
+                evictPage();
+            }
+        }
+    }
+
+    /**
+     * Put a page modified by a DbFile into the pool, replacing the resident
+     * version if there is one.
+     */
+    private void installPage(Page p) throws DbException {
+        PageId pid = p.getId();
+        Frame frame = pageTable.get(pid);
+        if (frame == null) {
+            reserveFrame();
+            synchronized (stripeFor(pid)) {
+                frame = pageTable.get(pid);
+                if (frame == null) {
+                    pageTable.put(pid, new Frame(p));
+                    replacementPolicy.pageLoaded(pid);
+                    return;
+                }
+                usedFrames.decrementAndGet();
+            }
+        }
+        synchronized (frame) {
+            frame.page = p;
+        }
     }
 
     public static int getPageSize() {
@@ -92,32 +777,143 @@ public class BufferPool {
 //        if (tid == null) System.out.println("NUlllllll!!!");
 
         lockManager.requestLock(tid, pid, perm);
-        Page page = id2Page.get(pid);
-        if (page == null) {
+        return getPageUnlocked(pid);
+    }
+
+    /**
+     * Like {@link #getPage}, but never waits for the lock.
+     *
+     * @return the page, or null if the lock could not be granted at once
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (!lockManager.tryLock(tid, pid, perm))
+            return null;
+        return getPageUnlocked(pid);
+    }
 
-            int tableId = pid.getTableId();
+    /**
+     * Retrieve a page without locking it, for callers that keep it from
+     * changing underneath them by other means, such as the latch BTreeFile
+     * holds while it reads its internal pages.
+     */
+    public Page getPageUnlocked(PageId pid) throws DbException {
+        Frame frame = pageTable.get(pid);
+        if (frame != null) {
+            recordAccess(pid, frame);
+            return frame.page;
+        }
+
+        return loadPage(pid);
+    }
+
+    /**
+     * Lock a key range of a B+ tree index on behalf of tid, waiting for the
+     * lock if wait is true. See {@link LockManager#lockKeyRange}.
+     *
+     * @return false if wait is false and the lock could not be granted at once
+     */
+    boolean lockKeyRange(TransactionId tid, LockManager.KeyRange range, LockManager.Mode mode,
+            boolean wait) throws TransactionAbortedException {
+        return lockManager.lockKeyRange(tid, range, mode, wait);
+    }
+
+    /**
+     * Read a page that is not resident and add it to the pool. The first
+     * request to miss on a page performs the read; requests that miss on the
+     * same page while it is in flight wait for that read and get the same
+     * Page object. A read-ahead that fails, for instance because no page
+     * could be evicted, or is cancelled does not fail the requests that
+     * joined it; they read the page again themselves.
+     */
+    private Page loadPage(final PageId pid) throws DbException {
+        PageLoad load = new PageLoad(new Callable<Page>() {
+            public Page call() throws DbException {
+                return readAndInstall(pid, false);
+            }
+        }, false);
+        PageLoad inFlight = inFlightLoads.putIfAbsent(pid, load);
+        if (inFlight != null) {
+            joinedLoads.incrementAndGet();
+            Page page;
             try {
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-                page = dbFile.readPage(pid);
-            } catch (RuntimeException e){
-                System.out.println(e.toString());
-                throw new DbException("Cannot find dbFile or page!");
+                page = awaitLoad(inFlight);
+            } catch (DbException e) {
+                if (!inFlight.prefetch)
+                    throw e;
+                inFlightLoads.remove(pid, inFlight);
+                return loadPage(pid);
             }
+            Frame frame = pageTable.get(pid);
+            if (frame != null)
+                recordAccess(pid, frame);
+            return page;
+        }
+        try {
+            load.run();
+        } finally {
+            inFlightLoads.remove(pid, load);
+        }
+        return awaitLoad(load);
+    }
 
-            /* add page to the buffer pool */
-            if (!id2Page.containsKey(pid) && id2Page.size() >= this.MAX_NUM_PAGES){
-                evictPage();
-                // throw new DbException("Insufficient space left in buffer pool!");
+    private Page readAndInstall(PageId pid, boolean prefetch) throws DbException {
+        /* make room first so that we never hold a stripe while evicting
+           from another one */
+        reserveFrame();
+        synchronized (stripeFor(pid)) {
+            Frame frame = pageTable.get(pid);
+            if (frame != null) {
+                // a previous load finished between our lookup and now
+                usedFrames.decrementAndGet();
+                return frame.page;
             }
-            if (page == null) System.out.println("get page null");
+        }
 
-            id2Page.put(pid, page);
+        // read without holding the stripe, so other pages of it stay available
+        Page page;
+        int tableId = pid.getTableId();
+        try {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            page = dbFile.readPage(pid);
+        } catch (RuntimeException e){
+            usedFrames.decrementAndGet();
+            throw new DbException("Cannot find dbFile or page!", e);
         }
 
-        // update transaction id
-//        id2TId.put(pid, tid);
+        synchronized (stripeFor(pid)) {
+            Frame frame = pageTable.get(pid);
+            if (frame != null) {
+                // installed by insertTuple/deleteTuple while we were reading
+                usedFrames.decrementAndGet();
+                return frame.page;
+            }
+            pageTable.put(pid, new Frame(page, prefetch));
+            replacementPolicy.pageLoaded(pid);
+            return page;
+        }
+    }
 
-        return page;
+    private static Page awaitLoad(FutureTask<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof DbException)
+                        throw (DbException) e.getCause();
+                    throw new DbException("Cannot find dbFile or page!", e.getCause());
+                } catch (CancellationException e) {
+                    throw new DbException("Read of page was cancelled", e);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -157,6 +953,14 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * Transactions that wrote a BEGIN record to the log (see
+     * {@link Transaction#start}) run STEAL/NO-FORCE: on commit the after
+     * images of their dirty pages are logged and the log is forced, but the
+     * pages stay dirty in the pool until they are evicted or checkpointed;
+     * on abort the log rolls back any of their pages that were stolen. Other
+     * transactions have nothing in the log to recover from, so their pages
+     * are written at commit and never evicted while dirty.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -165,92 +969,75 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        // if commit, flush dirty pages associated to the transaction to disk
-        // if abort, revert any changes made by the transaction by restoring the page to its on-disk state
-
-        ConcurrentHashMap<TransactionId, LinkedBlockingQueue<PageId>> tid2PageId = lockManager.getExlockTid2PageId();
-        if (!tid2PageId.containsKey(tid)) {
-//            System.out.println("Problems occur!");
-            lockManager.releasePages(tid);
-
-            return;
+        LogFile log = Database.getLogFile();
+        boolean logged = log.isActive(tid);
+        LinkedBlockingQueue<PageId> pageIdlist = lockManager.getExlockTid2PageId().get(tid);
+        List<Page> written = new ArrayList<>();
+        if (pageIdlist != null) {
+            for (PageId pid : pageIdlist) {
+                Frame frame = pageTable.get(pid);
+                if (frame != null)
+                    written.add(frame.page);
+            }
         }
-        LinkedBlockingQueue<PageId> pageIdlist = tid2PageId.get(tid);
 
         if (commit) {
-            for (PageId pid : pageIdlist) {
-//                Page p = id2Page.get(pid);
-//                flushPage();
-                flushPage(pid);
-//                id2Page.get(pid).setBeforeImage();
-                try {
-                    getPage(tid,pid,Permissions.READ_WRITE).setBeforeImage();
+            List<Page> dirtied = new ArrayList<>();
+            for (Page p : written) {
+                if (tid.equals(p.isDirty()))
+                    dirtied.add(p);
+            }
+            if (logged) {
+                // set before logging, so a checkpoint either lists the page
+                // or comes before its update record
+                long lsn = log.nextLsn();
+                for (Page p : dirtied) {
+                    Frame frame = pageTable.get(p.getId());
+                    if (frame != null)
+                        frame.dirtiedAt(lsn);
+                    log.logWrite(tid, p.getBeforeImage(), p);
                 }
-                catch (TransactionAbortedException e) {
-                    e.printStackTrace();
-                } catch (DbException e) {
-                    e.printStackTrace();
+                log.logCommit(tid);
+                for (Page p : dirtied) {
+                    p.setBeforeImage();
+                    p.markDirty(true, LOGGED);
+                    if (writeBehind)
+                        queueWrite(p.getId());
+                }
+            }
+            else {
+                for (Page p : dirtied) {
+                    flushPage(p.getId());
+                    p.setBeforeImage();
                 }
             }
         }
         else {
-            for (PageId pid : pageIdlist) {
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                id2Page.replace(pid, page);
-                page.markDirty(false, null);
+            // pages that were stolen are restored on disk and dropped from
+            // the pool by the rollback; the rest are restored in place
+            if (logged)
+                log.logAbort(tid);
+            // an operation that failed part way may have changed pages
+            // without marking them dirty, so restore every page written
+            for (Page p : written) {
+                Frame frame = pageTable.get(p.getId());
+                if (frame == null)
+                    continue;
+                synchronized (frame) {
+                    if (frame.page == p) {
+                        // a dirty page's before image is committed, but may
+                        // not be on disk yet
+                        Page before = p.getBeforeImage();
+                        if (p.isDirty() != null)
+                            before.markDirty(true, LOGGED);
+                        frame.page = before;
+                    }
+                }
             }
         }
 
-//        if (commit) {
-////            flushPages(tid);
-////            LinkedBlockingQueue<Pa>
-////            for (: tid2PageId.)
-//            synchronized (id2Page) {
-//                for (PageId pid : id2Page.keySet()) {
-//                    Page p = id2Page.get(pid);
-//                    if (p == null) System.out.println("p is Null!" + id2Page.containsKey(pid) + pid.toString());
-//                    if (tid.equals(p.isDirty())) {
-//                        flushPage(pid);
-//                        try {
-//                            getPage(tid,pid,Permissions.READ_WRITE).setBeforeImage();
-//                        } catch (TransactionAbortedException e) {
-//                            e.printStackTrace();
-//                        } catch (DbException e) {
-//                            e.printStackTrace();
-//                        }
-////                        p.setBeforeImage();
-//
-//                    }
-//                }
-//            }
-//        }
-//        else {
-//            FileWriter writee = new FileWriter("the-file-name.txt", true);
-//            writee.write("Reseting..."+tid.toString()+"\n");
-//            writee.close();
-////            System.out.println("Reseting..."+tid.toString());
-//            synchronized (id2Page) {
-//                for (PageId pid : id2Page.keySet()) {
-//                    Page p = id2Page.get(pid);
-//
-//                    if (tid.equals(p.isDirty())) {
-//                        if (p.getBeforeImage() == null) System.out.println("setimage null");
-////                        p.setBeforeImage();
-//                        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-//                        id2Page.replace(pid, page);
-////                        System.out.println("Reset" + p.toString() + "to" + page.toString());
-//                        FileWriter wriee = new FileWriter("the-file-name.txt", true);
-//                        wriee.write("Reset" + p.toString() + "to" + page.toString()+"\n");
-//                        wriee.close();
-//                        page.markDirty(false, null);
-//                    }
-//                }
-//            }
-//        }
-
         // release any state the BufferPool keeps regarding the transaction, including releasing any locks that the transaction held
         lockManager.releasePages(tid);
-
     }
 
     /**
@@ -277,14 +1064,10 @@ public class BufferPool {
             ArrayList<Page> dirtyPages = dbFile.insertTuple(tid, t);
             // may increase pages due to insert
             for (Page p:dirtyPages) {
-                if (!id2Page.containsKey(p.getId()) && id2Page.size()==MAX_NUM_PAGES){
-                    evictPage();
-                }
-                id2Page.put(p.getId(), p);
-    //                id2TId.put(p.getId(), tid);
-                // Marks any pages that were dirtied
-//                System.out.println(p.toString()+" is dirtied by "+tid.toString());
+                // Marks any pages that were dirtied; before installing, so
+                // that the page cannot be evicted in between
                 p.markDirty(true, tid);
+                installPage(p);
 //                tid2PageId.putIfAbsent(tid, new LinkedBlockingQueue<>());
 //                LinkedBlockingQueue<PageId> pageIdList = tid2PageId.get(tid);
 //                pageIdList.add(p.getId());
@@ -296,6 +1079,35 @@ public class BufferPool {
 
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, as if by calling {@link #insertTuple} for each of them. The file
+     * fills its pages in turn, so each page is locked once, and the dirtied
+     * pages are marked and cached once for the whole batch rather than once
+     * per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        if (tuples.isEmpty())
+            return;
+        DbFile dbFile;
+        try {
+            dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        } catch (NoSuchElementException e) {
+            throw new DbException("No table with id " + tableId, e);
+        }
+        ArrayList<Page> dirtyPages = dbFile.insertTuples(tid, tuples);
+        for (Page p : dirtyPages) {
+            p.markDirty(true, tid);
+            installPage(p);
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -321,15 +1133,9 @@ public class BufferPool {
 //            ww.write("A size of" +dirtyPages.size()+"is dirtied by "+tid.toString()+" in deletion.\n");
 //            ww.close();
             for (Page p:dirtyPages) {
-                if (!id2Page.containsKey(p.getId()) && id2Page.size()==MAX_NUM_PAGES){
-                    evictPage();
-                }
-
-    //                id2TId.put(p.getId(), tid);
-
                 // Marks any pages that were dirtied
                 p.markDirty(true, tid);
-                id2Page.put(p.getId(), p);
+                installPage(p);
 //                FileWriter writer = new FileWriter("the-file-name.txt", true);
 //                writer.write(p.toString()+" is dirtied by "+tid.toString()+" in deletion.\n");
 //                writer.close();
@@ -349,14 +1155,11 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Iterator<PageId> id2PageIter = id2Page.keySet().iterator();
-
-        while(id2PageIter.hasNext()){
-            PageId thisPageId = id2PageIter.next();
-            flushPage(thisPageId);
+        for (PageId pid : pageTable.keySet()) {
+            flushPage(pid);
         }
     }
 
@@ -368,90 +1171,116 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-//        synchronized (id2Page) {
-
-        id2Page.remove(pid);
-//        }
-//        id2TId.remove(pid);
+        synchronized (stripeFor(pid)) {
+            Frame frame = pageTable.get(pid);
+            if (frame == null)
+                return;
+            synchronized (frame) {
+                pageTable.remove(pid);
+            }
+            usedFrames.decrementAndGet();
+            replacementPolicy.pageRemoved(pid);
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. If the page holds changes of a
+     * transaction that is still running, an update record with its before
+     * and after images is forced to the log first, so the changes can be
+     * undone (write-ahead logging).
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page disPage = id2Page.get(pid);
-        if (disPage != null && disPage.isDirty() != null){
-            int tableId = pid.getTableId();
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-            // Push the specified page to disk.
-            dbFile.writePage(disPage);
-            disPage.markDirty(false, null);
+        Frame frame = pageTable.get(pid);
+        if (frame == null)
+            return;
+        frame.pin();
+        try {
+            Page disPage = frame.page;
+            TransactionId dirtier = disPage.isDirty();
+            if (dirtier == null)
+                return;
+            // log outside the latch; the log may itself be flushing pages
+            LogFile log = Database.getLogFile();
+            if (dirtier != LOGGED && log.isActive(dirtier)) {
+                log.logWrite(dirtier, disPage.getBeforeImage(), disPage);
+                log.force();
+            }
+            synchronized (frame) {
+                if (frame.page == disPage && disPage.isDirty() != null
+                        && pageTable.get(pid) == frame) {
+                    int tableId = pid.getTableId();
+                    DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+                    // Push the specified page to disk.
+                    dbFile.writePage(disPage);
+                    disPage.markDirty(false, null);
+                    frame.recLsn = NO_LSN;
+                    bytesWritten.addAndGet(getPageSize());
+                }
+            }
+        } finally {
+            frame.unpin();
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : id2Page.keySet()) {
-            Page p = id2Page.get(pid);
-            if (tid.equals(p.isDirty()))
-                flushPage(pid);
+        for (Map.Entry<PageId, Frame> e : pageTable.entrySet()) {
+            if (tid.equals(e.getValue().page.isDirty()))
+                flushPage(e.getKey());
         }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among unpinned pages
+     * that are clean or whose changes are logged. It is written out without
+     * holding any lock of the page table, and only its stripe is locked
+     * while it is removed.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Page dispage = null;
-//        LinkedBlockingQueue<PageId> candPageId = new LinkedBlockingQueue<>();
-        List<PageId> candPageId = new LinkedList<>();
-        Iterator<PageId> id2PageIter = id2Page.keySet().iterator();
-        while(id2PageIter.hasNext()){
-
-            PageId thisPageId = id2PageIter.next();
-
-            dispage = id2Page.get(thisPageId);
-
-            // do not evict dirty pages NO STEAL
-            if (dispage.isDirty()==null){
-                candPageId.add(thisPageId);
+        while (true) {
+            PageId chosenPageId = replacementPolicy.chooseVictim(evictable);
+            if (chosenPageId == null) {
+                throw new DbException("No suitable page to evict!");
             }
-        }
-
-        if (candPageId.size() == 0) {
-            throw new DbException("No suitable page to evict!");
-        }
 
-        Random rand = new Random();
-        PageId chosenPageId = candPageId.get(rand.nextInt(candPageId.size()));
-//        PageId chosenPageId = candPageId.peek();
+            try {
+                flushPage(chosenPageId);
+            } catch (IOException e) {
+                replacementPolicy.pageReinstated(chosenPageId);
+                throw new DbException("Cannot write page while evicting it: " + e);
+            }
 
-        try {
-            Page chosenPage = id2Page.get(chosenPageId);
-            assert chosenPage.isDirty() == null;
-            flushPage(chosenPageId);
-        }
-        catch (IOException e){
-            System.out.println(e.toString());
-            throw new DbException("Error exists in pages!");
+            synchronized (stripeFor(chosenPageId)) {
+                Frame frame = pageTable.get(chosenPageId);
+                if (frame == null) {
+                    // discarded concurrently, which freed the frame for us
+                    return;
+                }
+                synchronized (frame) {
+                    if (frame.isPinned() || frame.page.isDirty() != null) {
+                        // became busy after it was chosen; hand it back
+                        replacementPolicy.pageReinstated(chosenPageId);
+                        continue;
+                    }
+                    pageTable.remove(chosenPageId);
+                }
+                usedFrames.decrementAndGet();
+                return;
+            }
         }
-//        System.out.println("evicting"+chosenPageId.toString());
-//        synchronized (id2Page) {
-        id2Page.remove(chosenPageId);
-//        }
-//        id2TId.remove(chosenPageId);
     }
 
 }
@@ -165,6 +165,13 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * If the system property simpledb.HeapFile.mmap is true, the tables are
+     * opened read-only as {@link MappedHeapFile}s.
+     * A table line may end with options after its fields: "btree" stores the
+     * table as a {@link BTreeFile} keyed on its primary key, and "compress"
+     * also makes a new one compress its string keys, as in
+     * <pre>    pages (url string pk, hits int) btree compress</pre>
+     * An existing B+ tree file is opened with the setting it was created with.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -179,6 +186,25 @@ public class Catalog {
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
+                boolean btree = false;
+                boolean compress = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (!options.isEmpty()) {
+                    for (String o : options.split("\\s+")) {
+                        if (o.equals("btree"))
+                            btree = true;
+                        else if (o.equals("compress"))
+                            compress = true;
+                        else {
+                            System.out.println("Unknown option " + o);
+                            System.exit(0);
+                        }
+                    }
+                    if (compress && !btree) {
+                        System.out.println("Only a btree table can compress its keys: " + name);
+                        System.exit(0);
+                    }
+                }
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
@@ -205,8 +231,21 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabDbFile;
+                if (btree) {
+                    int key = names.indexOf(primaryKey);
+                    if (key < 0) {
+                        System.out.println("B+ tree table " + name + " needs a primary key");
+                        System.exit(0);
+                    }
+                    tabDbFile = compress ? new BTreeFile(tabFile, key, t, true)
+                            : new BTreeFile(tabFile, key, t);
+                } else {
+                    tabDbFile = Boolean.getBoolean("simpledb.HeapFile.mmap")
+                            ? new MappedHeapFile(tabFile, t) : new HeapFile(tabFile, t);
+                }
+                addTable(tabDbFile,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
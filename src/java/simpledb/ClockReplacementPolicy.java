@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array
+ * of frames, each with a small reference counter. A hit bumps the counter;
+ * the clock hand sweeps the frames, decrementing counters, and evicts the
+ * first evictable page whose counter is already zero. Each eviction is O(1)
+ * amortized since every step of the hand either evicts or burns a reference.
+ * <p>
+ * Newly loaded pages start with a zero counter, so a page read once by a
+ * SeqScan is the first to go and a scan cannot flush pages that are actually
+ * being reused. B+ tree root pointer and internal pages start (and are
+ * refreshed) with extra chances so they survive several sweeps.
+ */
+public class ClockReplacementPolicy extends AbstractReplacementPolicy {
+
+    /** Counter value given to an ordinary page on a hit. */
+    static final int DATA_PAGE_CHANCES = 1;
+    /** Counter value given to a B+ tree root pointer or internal page. */
+    static final int INDEX_PAGE_CHANCES = 3;
+
+    private PageId[] frames;
+    private int[] refCounts;
+    private final HashMap<PageId, Integer> pid2Frame;
+    private final ArrayDeque<Integer> freeFrames;
+    private int hand;
+
+    /**
+     * @param capacity the expected number of resident pages; the clock grows
+     *   if more pages are ever resident at once.
+     */
+    public ClockReplacementPolicy(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.frames = new PageId[capacity];
+        this.refCounts = new int[capacity];
+        this.pid2Frame = new HashMap<>();
+        this.freeFrames = new ArrayDeque<>();
+        for (int i = 0; i < capacity; i++)
+            freeFrames.add(i);
+        this.hand = 0;
+    }
+
+    private static int chances(PageId pid) {
+        return isIndexInteriorPage(pid) ? INDEX_PAGE_CHANCES : DATA_PAGE_CHANCES;
+    }
+
+    private void grow() {
+        int oldLen = frames.length;
+        frames = Arrays.copyOf(frames, oldLen * 2);
+        refCounts = Arrays.copyOf(refCounts, oldLen * 2);
+        for (int i = oldLen; i < frames.length; i++)
+            freeFrames.add(i);
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        countMiss();
+        if (pid2Frame.containsKey(pid)) {
+            refCounts[pid2Frame.get(pid)] = chances(pid);
+            return;
+        }
+        if (freeFrames.isEmpty())
+            grow();
+        int frame = freeFrames.poll();
+        frames[frame] = pid;
+        // data pages start cold so that pages touched once by a scan go first
+        refCounts[frame] = isIndexInteriorPage(pid) ? INDEX_PAGE_CHANCES : 0;
+        pid2Frame.put(pid, frame);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        countHit();
+        Integer frame = pid2Frame.get(pid);
+        if (frame != null)
+            refCounts[frame] = Math.max(refCounts[frame], chances(pid));
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = pid2Frame.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            refCounts[frame] = 0;
+            freeFrames.add(frame);
+        }
+    }
+
+    public synchronized void pageReinstated(PageId pid) {
+        if (pid2Frame.containsKey(pid))
+            return;
+        if (freeFrames.isEmpty())
+            grow();
+        // its counter was zero when it was chosen
+        int frame = freeFrames.poll();
+        frames[frame] = pid;
+        refCounts[frame] = 0;
+        pid2Frame.put(pid, frame);
+    }
+
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        // after (INDEX_PAGE_CHANCES + 1) full sweeps every counter is zero,
+        // so if nothing has been chosen by then nothing can be
+        int maxSteps = frames.length * (INDEX_PAGE_CHANCES + 2);
+        for (int step = 0; step < maxSteps; step++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[frame];
+            if (pid == null)
+                continue;
+            if (refCounts[frame] > 0) {
+                refCounts[frame]--;
+                continue;
+            }
+            if (filter.canEvict(pid)) {
+                pageRemoved(pid);
+                countEviction();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
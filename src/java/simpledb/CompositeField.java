@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, in order, as
+ * the key of an index over more than one column. Composite values compare
+ * lexicographically, and a value with fewer fields than another is a prefix
+ * of the keys it is compared to: only the fields they both have are
+ * compared, so (5) equals every key starting with 5, and is less than every
+ * key starting with 6. Predicates over the leading columns of a composite
+ * index, like "tenant = 5" or "tenant = 5 and ts >= 100", are thus ranges of
+ * its keys.
+ *
+ * @see BTreeFile#BTreeFile(File, int[], TupleDesc)
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, at least one, in the order of
+     *   the columns they are for.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the value of the ith field of this composite value
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the number of fields in this composite value
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Write the fields one after the other, each in its own format.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    public void serialize(ByteBuffer buf, int offset) {
+        for (Field f : fields) {
+            f.serialize(buf, offset);
+            offset += f.getType().getLen();
+        }
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, field by field
+     * for as many fields as both have. A field that is not a CompositeField
+     * compares as a composite value with only that field.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        int cmp = compareTo(val);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+
+        case GREATER_THAN:
+            return cmp > 0;
+
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+
+        case LESS_THAN:
+            return cmp < 0;
+
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return -1, 0 or 1 as this value is less than, equal to or greater than
+     *   val, over the fields both have
+     */
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] { val };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the Type of the first field; composite values have no Type of
+     * their own. Use getField for the others.
+     * @return the type of the first field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
@@ -59,7 +59,9 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            BufferPool old = _instance.get()._bufferpool;
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            old.cancelPrefetches();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +77,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._bufferpool.cancelPrefetches();
     }
 
 }
@@ -28,6 +28,16 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages, which are adjacent in the file and given in
+     * page number order, to disk, as if by calling {@link #writePage} for
+     * each of them but with as few writes as the file allows.
+     *
+     * @param pages The pages to write.
+     * @throws IOException if the write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -43,6 +53,26 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, as if
+     * by calling {@link #insertTuple} for each of them, but filling pages in
+     * turn so that each affected page is locked and returned once.
+     * <p>
+     * A batch may dirty more pages than the buffer pool holds, so pages must
+     * be marked dirty by tid as soon as they have been modified, rather than
+     * being left to the caller; otherwise they could be evicted before the
+     * call returns.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each tuple should be updated to
+     *          reflect that it is now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
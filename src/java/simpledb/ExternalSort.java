@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may not fit in memory. Tuples
+ * are collected into runs of at most runSize tuples; each full run is sorted
+ * and spilled to a temporary file, and {@link #sorted} merges the runs with
+ * a priority queue. If all the tuples fit in one run nothing is written to
+ * disk.
+ */
+class ExternalSort {
+
+    /** Default number of tuples sorted in memory at a time. */
+    static final int DEFAULT_RUN_SIZE = 100000;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> cmp;
+    private final int runSize;
+    private ArrayList<Tuple> buffer;
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private final ArrayList<Integer> runLengths = new ArrayList<Integer>();
+    private int count;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param cmp the order to sort them in
+     * @param runSize the number of tuples to sort in memory at a time
+     */
+    ExternalSort(TupleDesc td, Comparator<Tuple> cmp, int runSize) {
+        this.td = td;
+        this.cmp = cmp;
+        this.runSize = runSize;
+        this.buffer = new ArrayList<Tuple>();
+    }
+
+    /** Add a tuple to the input. */
+    void add(Tuple t) throws IOException {
+        buffer.add(t);
+        count++;
+        if (buffer.size() >= runSize)
+            spill();
+    }
+
+    /** @return the number of tuples added so far */
+    int size() {
+        return count;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, cmp);
+        File run = File.createTempFile("sortrun", ".dat");
+        run.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (Tuple t : buffer) {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.getField(i).serialize(dos);
+            }
+        } finally {
+            dos.close();
+        }
+        runs.add(run);
+        runLengths.add(buffer.size());
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * Returns the tuples added so far in sorted order. No more tuples may be
+     * added afterwards. Spilled runs are deleted once they have been read.
+     */
+    Iterator<Tuple> sorted() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, cmp);
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty())
+            spill();
+        final PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(runs.size(),
+                new Comparator<RunReader>() {
+                    public int compare(RunReader a, RunReader b) {
+                        return cmp.compare(a.head, b.head);
+                    }
+                });
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader r = new RunReader(runs.get(i), runLengths.get(i));
+            if (r.advance())
+                heads.add(r);
+        }
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            public Tuple next() {
+                RunReader r = heads.poll();
+                if (r == null)
+                    throw new NoSuchElementException();
+                Tuple t = r.head;
+                if (r.advance())
+                    heads.add(r);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Reads one spilled run back, one tuple ahead. */
+    private class RunReader {
+        private final File file;
+        private final DataInputStream dis;
+        private int remaining;
+        Tuple head;
+
+        RunReader(File file, int length) throws IOException {
+            this.file = file;
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.remaining = length;
+        }
+
+        /** Read the next tuple into head; false, and clean up, at the end. */
+        boolean advance() {
+            try {
+                if (remaining == 0) {
+                    dis.close();
+                    file.delete();
+                    head = null;
+                    return false;
+                }
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+                remaining--;
+                head = t;
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
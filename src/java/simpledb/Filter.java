@@ -42,6 +42,9 @@ public class Filter extends Operator {
         // some code goes here
         super.open();
 
+        // let a heap scan test the predicate before decoding tuples
+        if (child instanceof SeqScan)
+            ((SeqScan) child).pushPredicate(this.p);
         child.open();
         this.open = true;
     }
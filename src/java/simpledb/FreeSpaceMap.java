@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have at least one empty
+ * slot, so that inserts can go straight to such a page instead of scanning
+ * (and locking) every full page in front of it.
+ * <p>
+ * The map is one bit per page, persisted in a side file next to the table
+ * ("&lt;table file&gt;.fsm"). The bit for a page is written to the side file
+ * whenever the page itself is written, so the file describes the pages as
+ * they are on disk. In memory the bits are also updated as tuples are
+ * inserted and deleted. The map is only a hint: a page it reports as free
+ * may have been filled by a transaction that later aborted, so callers must
+ * check the page and call {@link #markFull} if it has no room. If the side
+ * file is missing, or shorter than the table, the missing bits are rebuilt
+ * from the pages on disk.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    private final HeapFile file;
+    private final PageChannel sideChannel;
+    private BitSet free;  // null until loaded
+
+    FreeSpaceMap(HeapFile file) {
+        this.file = file;
+        this.sideChannel = new PageChannel(sideFile(file.getFile()));
+    }
+
+    /** @return the side file holding the map of the specified table file */
+    static File sideFile(File tableFile) {
+        return new File(tableFile.getPath() + ".fsm");
+    }
+
+    /**
+     * @return the number of the first page at or after from that may have
+     *   an empty slot, or -1 if there is none
+     */
+    synchronized int firstFree(int from) throws IOException {
+        load();
+        return free.nextSetBit(from);
+    }
+
+    /** Record that page pgNo has no empty slots. */
+    synchronized void markFull(int pgNo) throws IOException {
+        load();
+        free.clear(pgNo);
+    }
+
+    /** Record that page pgNo has at least one empty slot. */
+    synchronized void markFree(int pgNo) throws IOException {
+        load();
+        free.set(pgNo);
+    }
+
+    /**
+     * Record the state of a page that is being written to disk, in memory
+     * and in the side file.
+     */
+    synchronized void pageWritten(int pgNo, boolean hasRoom) throws IOException {
+        load();
+        free.set(pgNo, hasRoom);
+        writeByte(pgNo / 8);
+    }
+
+    private void load() throws IOException {
+        if (free != null)
+            return;
+        int numPages = file.numPages();
+        free = new BitSet(numPages);
+
+        byte[] bytes = new byte[(numPages + 7) / 8];
+        int read = Math.max(0, sideChannel.read(bytes, 0));
+        for (int pgNo = 0; pgNo < Math.min(numPages, read * 8); pgNo++) {
+            if ((bytes[pgNo / 8] & (1 << (pgNo % 8))) != 0)
+                free.set(pgNo);
+        }
+
+        // pages the side file doesn't cover are checked on disk
+        if (read * 8 < numPages) {
+            for (int pgNo = read * 8; pgNo < numPages; pgNo++) {
+                HeapPage page = (HeapPage) file.readPage(new HeapPageId(file.getId(), pgNo));
+                free.set(pgNo, page.getNumEmptySlots() > 0);
+            }
+            byte[] tail = new byte[bytes.length - read];
+            for (int i = 0; i < tail.length; i++)
+                tail[i] = packByte(read + i);
+            sideChannel.write(tail, read);
+        }
+    }
+
+    private byte packByte(int byteNo) {
+        byte b = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (free.get(byteNo * 8 + bit))
+                b |= 1 << bit;
+        }
+        return b;
+    }
+
+    private void writeByte(int byteNo) throws IOException {
+        sideChannel.write(new byte[] { packByte(byteNo) }, byteNo);
+    }
+}
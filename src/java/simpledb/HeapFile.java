@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -24,17 +25,18 @@ public class HeapFile implements DbFile {
      */
     private File backingFile;
     private TupleDesc fileTd;
-    private RandomAccessFile randAccessFile;
+    // pages are read and written with positional I/O, so concurrent readers
+    // of different pages don't contend on a file pointer
+    private PageChannel pageChannel;
+    // pages with room for inserts, see FreeSpaceMap
+    private FreeSpaceMap freeSpaceMap;
 
     public HeapFile(File f, TupleDesc td) throws RuntimeException{
         // some code goes here
         this.backingFile = f;
         this.fileTd = td;
-        try{
-            this.randAccessFile = new RandomAccessFile(this.backingFile, "rw");
-        }catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this.pageChannel = new PageChannel(this.backingFile);
+        this.freeSpaceMap = new FreeSpaceMap(this);
     }
 
     /**
@@ -80,11 +82,10 @@ public class HeapFile implements DbFile {
         HeapPage page;
 
         // pgNo is 0-base, just use to calc offset
-        int offset = pgNo * pgSz;
+        long offset = (long) pgNo * pgSz;
         byte[] data = new byte[pgSz];
         try{
-            this.randAccessFile.seek(offset);
-            this.randAccessFile.read(data,0,pgSz);
+            this.pageChannel.read(data, offset);
             page = new HeapPage((HeapPageId) pid, data);
         }catch (IOException e) {
             throw new RuntimeException(e);
@@ -100,16 +101,45 @@ public class HeapFile implements DbFile {
         int pgNo = pid.pageNumber();
 //        System.out.println(pgNo);
         int pgSz = BufferPool.getPageSize();
-        int offset = pgSz * pgNo;
+        long offset = (long) pgSz * pgNo;
         try{
-            this.randAccessFile.seek(offset);
-            this.randAccessFile.write(page.getPageData());
+            if (page instanceof HeapPage) {
+                HeapPage hp = (HeapPage) page;
+                this.pageChannel.write(hp.getPageBuffer(), offset);
+                this.freeSpaceMap.pageWritten(pgNo, hp.getNumEmptySlots() > 0);
+            }
+            else
+                this.pageChannel.write(page.getPageData(), offset);
         }catch (IOException e) {
             throw new RuntimeException(e);
         }
 
     }
 
+    /**
+     * Writes adjacent pages with one gathering write, straight from the
+     * pages' own buffers.
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        ByteBuffer[] data = new ByteBuffer[pages.size()];
+        for (int i = 0; i < data.length; i++) {
+            Page page = pages.get(i);
+            if (page instanceof HeapPage)
+                data[i] = ((HeapPage) page).getPageBuffer();
+            else
+                data[i] = ByteBuffer.wrap(page.getPageData());
+        }
+        long offset = (long) BufferPool.getPageSize() * pages.get(0).getId().pageNumber();
+        this.pageChannel.write(data, offset);
+        for (Page page : pages) {
+            if (page instanceof HeapPage)
+                this.freeSpaceMap.pageWritten(page.getId().pageNumber(),
+                        ((HeapPage) page).getNumEmptySlots() > 0);
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -122,46 +152,68 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        HeapPage insertedPage = null;
+        // not necessary for lab1
+        return insertTuples(tid, Collections.singletonList(t));
+    }
+
+    /**
+     * Fills pages in order: each page with room is locked once and takes as
+     * many of the tuples as fit before the next one is looked up.
+     *
+     * @see DbFile#insertTuples
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> dirtyPage = new ArrayList<>();
+        Iterator<Tuple> it = tuples.iterator();
+        int from = 0;
+        while (it.hasNext()) {
+            HeapPage page = pageWithRoom(tid, from);
+            int pageNumber = page.getId().pageNumber();
+            int room = page.getNumEmptySlots();
+            for (; room > 0 && it.hasNext(); room--) {
+                page.insertTuple(it.next());
+            }
+            if (room == 0)
+                this.freeSpaceMap.markFull(pageNumber);
+            // keep the page from being evicted while the rest are filled
+            page.markDirty(true, tid);
+            dirtyPage.add(page);
+            from = pageNumber + 1;
+        }
+        return dirtyPage;
+    }
 
-        int pageNumber = 0;
-        while (pageNumber < numPages()) {
+    /**
+     * Returns the first page at or after page number from that has an empty
+     * slot, locked READ_WRITE, appending a new page if there is none.
+     */
+    private HeapPage pageWithRoom(TransactionId tid, int from)
+            throws DbException, IOException, TransactionAbortedException {
+        // only visit pages the free-space map says have room
+        int pageNumber = this.freeSpaceMap.firstFree(from);
+        while (pageNumber >= 0 && pageNumber < numPages()) {
             HeapPageId pid = new HeapPageId(getId(), pageNumber);
-//            System.out.println("22");
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-//            System.out.println("222");
             if (page.getNumEmptySlots()>0){
                 // find page with empty slots
-//                System.out.println("2222");
-
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-//                System.out.println("22222");
-
-                insertedPage = page;
-                insertedPage.insertTuple(t);
-                dirtyPage.add(insertedPage);
-//                Database.getBufferPool().releasePage(tid, pid);
-
-                return dirtyPage;
+                return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            }
+            // the map was stale, e.g. after an abort
+            this.freeSpaceMap.markFull(pageNumber);
+            if (page.isDirty() == null) {
+                // need to release page here.
+                Database.getBufferPool().releasePage(tid, pid);
             }
-            pageNumber ++;
-            // need to release page here.
-            Database.getBufferPool().releasePage(tid, pid);
+            pageNumber = this.freeSpaceMap.firstFree(pageNumber + 1);
         }
 
-//        System.out.println("hhh");
         // no page to insert
         HeapPageId newPid = new HeapPageId(getId(), numPages());
         HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
         writePage(newPage);
 
-        newPage = (HeapPage) Database.getBufferPool().getPage(tid,newPid,Permissions.READ_WRITE);
-        newPage.insertTuple(t);
-        dirtyPage.add(newPage);
-
-        return dirtyPage;
-        // not necessary for lab1
+        return (HeapPage) Database.getBufferPool().getPage(tid,newPid,Permissions.READ_WRITE);
     }
 
     // see DbFile.java for javadocs
@@ -178,6 +230,7 @@ public class HeapFile implements DbFile {
 //        writer.write(t.toString()+" is deleted by "+tid.toString()+" in deletion.\n");
 //        writer.close();
         page.deleteTuple(t);
+        this.freeSpaceMap.markFree(pid.pageNumber());
 
         ArrayList<Page> dirtyPage = new ArrayList<>();
         dirtyPage.add(page);
@@ -191,21 +244,43 @@ public class HeapFile implements DbFile {
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
 //        return new HeapFileIterator(tid, getId(), numPages());
-        return new HeapFileItertor(tid);
+        return new HeapFileItertor(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that pass p. The
+     * predicate is evaluated against the page data before tuples are
+     * decoded, see {@link HeapPage#iterator(Predicate)}.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return new HeapFileItertor(tid, p);
     }
 
+    /**
+     * Number of consecutive pages a scan must read in order before read-ahead
+     * kicks in.
+     */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+
     public class HeapFileItertor implements DbFileIterator {
         private boolean is_open;
         private int curPgNum;
         private Iterator<Tuple> curPgIterator;
         private TransactionId tid;
+        private Predicate pred;     // pushed-down filter, or null
         private Tuple next;
+        private int lastPgNum;      // last page this scan fetched
+        private int sequentialRun;  // pages fetched in order so far
+        private int readAheadUpTo;  // last page already handed to read-ahead
         public void open()
                 throws DbException, TransactionAbortedException{
             if (this.is_open){
                 throw new DbException("File is open!");
             }
             this.curPgNum = 0;
+            this.lastPgNum = -1;
+            this.sequentialRun = 0;
+            this.readAheadUpTo = -1;
             this.curPgIterator = getPgIter(curPgNum);
             this.is_open = true;
 //            this.next = get_next();
@@ -217,16 +292,12 @@ public class HeapFile implements DbFile {
                 return false;
             }
 //            return this.next != null;
-            if (this.curPgIterator.hasNext())
-                return true;
-
-            this.curPgNum ++;
-            if (this.curPgNum < numPages()){
+            // pages with no tuple left (or none passing the predicate) are
+            // skipped, so keep going until one has a tuple or the file ends
+            while (!this.curPgIterator.hasNext() && ++this.curPgNum < numPages()) {
                 this.curPgIterator = getPgIter(this.curPgNum);
-                return this.curPgIterator.hasNext();
-
             }
-            return false;
+            return this.curPgIterator.hasNext();
         }
 
 //        private Tuple get_next()
@@ -284,17 +355,46 @@ public class HeapFile implements DbFile {
             this.is_open = false;
         }
 
-        public HeapFileItertor(TransactionId tid){
+        public HeapFileItertor(TransactionId tid, Predicate pred){
             this.tid = tid;
+            this.pred = pred;
         }
 
         private Iterator<Tuple> getPgIter(int pgNum) throws DbException,
                 TransactionAbortedException{
+            readAhead(pgNum);
             // generate tableid using getId() i.e. the heap file id
             HeapPageId pid = new HeapPageId(getId(), pgNum);
             HeapPage hp = (HeapPage) Database.getBufferPool().getPage(this.tid, pid, Permissions.READ_ONLY);
 
-            return hp.iterator();
+            return this.pred == null ? hp.iterator() : hp.iterator(this.pred);
+        }
+
+        /**
+         * Once the scan has fetched SEQUENTIAL_THRESHOLD pages in order, ask
+         * the buffer pool to read the next pages (up to its read-ahead
+         * window) in the background, so that they are resident by the time
+         * the scan gets there.
+         */
+        private void readAhead(int pgNum) {
+            if (pgNum == this.lastPgNum + 1) {
+                this.sequentialRun ++;
+            }
+            else {
+                this.sequentialRun = 1;
+                this.readAheadUpTo = pgNum;
+            }
+            this.lastPgNum = pgNum;
+
+            BufferPool bp = Database.getBufferPool();
+            int window = bp.getReadAheadWindow();
+            if (window == 0 || this.sequentialRun < SEQUENTIAL_THRESHOLD)
+                return;
+            int last = Math.min(numPages() - 1, pgNum + window);
+            for (int p = Math.max(this.readAheadUpTo, pgNum) + 1; p <= last; p++) {
+                bp.prefetchPage(new HeapPageId(getId(), p));
+            }
+            this.readAheadUpTo = Math.max(this.readAheadUpTo, last);
         }
     }
 
@@ -2,10 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are decoded lazily: the page keeps the buffer it was read from and
+ * only turns a slot into a Tuple the first time it is asked for. Single
+ * fields can be read straight from the buffer with {@link #getField}, and
+ * {@link #iterator(Predicate)} tests a predicate that way so that only the
+ * tuples that pass it are materialized.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,9 +23,18 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // decoded tuples; null for empty slots and for slots not decoded yet
     final Tuple tuples[];
     final int numSlots;
-    byte[] oldData;
+    // the page bytes: header and records, kept up to date by insertTuple
+    // and deleteTuple. Undecoded slots are read from here.
+    private ByteBuffer data;
+    // false until data is copied into a buffer owned by this page
+    private boolean ownsData;
+    // contents as of the last commit, taken on the first modification after
+    // it; null while the page is unmodified. May be the buffer the page was
+    // built from, which is never written.
+    private ByteBuffer oldData;
     private final Byte oldDataLock=new Byte((byte)0);
     private TransactionId tid;  // record that transaction that did the dirtying
     /**
@@ -38,6 +54,18 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page in the format
+     * described in {@link #HeapPage(HeapPageId, byte[])}, starting at index
+     * 0 of the buffer. Fields are decoded with absolute gets, so the buffer
+     * can be a view over a memory-mapped file and no intermediate byte array
+     * is allocated. The buffer is never modified: it is copied before the
+     * first change to the page, and then serves as the before image.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
 
         try {
@@ -48,24 +76,16 @@ public class HeapPage implements Page {
         }
 
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+            header[i] = data.get(i);
 
-        setBeforeImage();
+        // records are decoded on demand, see getTuple()
+        tuples = new Tuple[numSlots];
+        this.data = data;
+        this.ownsData = false;
         this.tid = null;
     }
 
@@ -103,11 +123,13 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null)
+                return new HeapPage(pid,getPageData());
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -120,7 +142,28 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    public int getBeforeImageSize() {
+        synchronized(oldDataLock)
+        {
+            return oldData == null ? 0 : oldData.capacity();
+        }
+    }
+
+    /**
+     * Saves the current contents as the before image, unless one is already
+     * held. While the page still shares the buffer it was built from, that
+     * buffer is kept as is; ensureWritable() then gives the page its own copy.
+     */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData != null)
+                return;
+            oldData = ownsData ? ByteBuffer.wrap(getPageData()) : data;
         }
     }
 
@@ -133,34 +176,60 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Byte offset in the page data of the record in slotId.
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Returns the tuple in slotId, decoding it from the page data the first
+     * time it is asked for, or null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    Tuple getTuple(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
+        synchronized (tuples) {
+            if (tuples[slotId] == null) {
+                tuples[slotId] = readTuple(slotId);
+            }
+            return tuples[slotId];
+        }
+    }
 
+    /**
+     * Returns field i of the tuple in slotId without materializing the tuple
+     * if it has not been decoded yet.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int i) {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("Slot " + slotId + " is empty");
+        }
+        Tuple t;
+        synchronized (tuples) {
+            t = tuples[slotId];
+        }
+        if (t != null)
+            return t.getField(i);
+        return td.getFieldType(i).parse(data, slotOffset(slotId) + td.getFieldOffset(i));
+    }
+
+    /**
+     * Decode the tuple in slotId from the page data.
+     */
+    private Tuple readTuple(int slotId) {
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
 
         return t;
@@ -178,64 +247,43 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        getPageBuffer().get(pageData);
+        return pageData;
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Returns a read-only view of the page data, positioned at its first
+     * byte, which is what {@link #getPageData} would copy. Lets HeapFile
+     * write the page without copying it. The view reflects later changes
+     * to the page.
+     */
+    ByteBuffer getPageBuffer() {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.clear();
+        view.limit(BufferPool.getPageSize());
+        return view;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Copies the page data into a buffer this page owns before it is first
+     * modified; until then data may be a read-only mapping or an array that
+     * still belongs to the caller of the constructor.
+     */
+    private void ensureWritable() {
+        if (ownsData)
+            return;
+        data = ByteBuffer.wrap(getPageData());
+        ownsData = true;
+    }
 
-        return baos.toByteArray();
+    /**
+     * Zeroes the record bytes of slotId in the page data.
+     */
+    private void clearSlot(int slotId) {
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.getSize(); j++)
+            data.put(offset + j, (byte) 0);
     }
 
     /**
@@ -272,11 +320,16 @@ public class HeapPage implements Page {
             throw new DbException("No need to delete.");
         }
 
+        captureBeforeImage();
+        ensureWritable();
         markSlotUsed(tupleNo, false);
+        clearSlot(tupleNo);
 
         // update tuple
 //        t.setRecordId(null);
-        tuples[tupleNo] = null;
+        synchronized (tuples) {
+            tuples[tupleNo] = null;
+        }
     }
 
     /**
@@ -297,6 +350,8 @@ public class HeapPage implements Page {
             throw new DbException("Miss matching.");
         }
 
+        captureBeforeImage();
+        ensureWritable();
         int tupleNo = -1;
         for (int i = 0; i < this.numSlots; ++i){
             if (!(isSlotUsed(i))){
@@ -306,9 +361,18 @@ public class HeapPage implements Page {
             }
         }
 
+        // write the record through to the page data
+        clearSlot(tupleNo);
+        int offset = slotOffset(tupleNo);
+        for (int j = 0; j < td.numFields(); ++j){
+            t.getField(j).serialize(data, offset + td.getFieldOffset(j));
+        }
+
         // update tuple
         t.setRecordId(new RecordId(pid, tupleNo));
-        tuples[tupleNo] = t;
+        synchronized (tuples) {
+            tuples[tupleNo] = t;
+        }
     }
 
     /**
@@ -377,8 +441,10 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int byteIdx = i/8;
         int bitOffset = i%8;
-        if (isSlotUsed(i) != value)
+        if (isSlotUsed(i) != value) {
             header[byteIdx] ^= (1<<bitOffset);
+            data.put(byteIdx, header[byteIdx]);
+        }
     }
 
     /**
@@ -390,6 +456,47 @@ public class HeapPage implements Page {
         return new PageTupleIterator();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that pass p. The
+     * predicate is tested on the field read from the page data, so tuples
+     * that fail it are never materialized. Calling remove on this iterator
+     * throws an UnsupportedOperationException.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        return new FilteredTupleIterator(p);
+    }
+
+    private class FilteredTupleIterator implements Iterator<Tuple> {
+        private final Predicate p;
+        private int curPos;  // next slot to test
+
+        private FilteredTupleIterator(Predicate p) {
+            this.p = p;
+            this.curPos = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (; curPos < numSlots; ++curPos) {
+                if (isSlotUsed(curPos) && p.filterField(getField(curPos, p.getField())))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException("Has no next element!");
+            return getTuple(curPos++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     public class PageTupleIterator implements Iterator<Tuple> {
         private int curPos;  //record index in current slots
         private int usedIdx; //record index of used slots
@@ -404,7 +511,7 @@ public class HeapPage implements Page {
                     }
                 }
                 usedIdx += 1;
-                return tuples[curPos++];
+                return getTuple(curPos++);
 
             }
             else{
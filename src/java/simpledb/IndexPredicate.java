@@ -11,6 +11,8 @@ public class IndexPredicate implements Serializable {
     private static final long serialVersionUID = 1L;
 	private Predicate.Op op;
 	private Field fvalue;
+	private Predicate.Op endOp = null;
+	private Field endValue = null;
     /**
      * Constructor.
      *
@@ -26,6 +28,30 @@ public class IndexPredicate implements Serializable {
         this.fvalue = fvalue;
     }
 
+    /**
+     * Constructor for a range: the values v for which both v op fvalue and
+     * v endOp endValue hold. With {@link CompositeField} values either end
+     * may be a prefix of the key, so for an index on (tenant, ts), the range
+     * (GREATER_THAN_OR_EQ, (5, 100), LESS_THAN_OR_EQ, (5)) selects the keys
+     * with tenant 5 and ts at least 100.
+     *
+     * @param op The operation for the start of the range; either
+     *   Predicate.Op.GREATER_THAN or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param fvalue The value the range starts at.
+     * @param endOp The operation for the end of the range; either
+     *   Predicate.Op.LESS_THAN or Predicate.Op.LESS_THAN_OR_EQ
+     * @param endValue The value the range ends at.
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue, Predicate.Op endOp, Field endValue) {
+        if ((op != Predicate.Op.GREATER_THAN && op != Predicate.Op.GREATER_THAN_OR_EQ)
+                || (endOp != Predicate.Op.LESS_THAN && endOp != Predicate.Op.LESS_THAN_OR_EQ))
+            throw new IllegalArgumentException("a range needs a lower and an upper bound");
+        this.op = op;
+        this.fvalue = fvalue;
+        this.endOp = endOp;
+        this.endValue = endValue;
+    }
+
     public Field getField() {
         // some code goes here
         return this.fvalue;
@@ -36,6 +62,22 @@ public class IndexPredicate implements Serializable {
         return this.op;
     }
 
+    /**
+     * @return the operation for the end of a range, or null if this predicate
+     *   is a single comparison
+     */
+    public Predicate.Op getEndOp() {
+        return this.endOp;
+    }
+
+    /**
+     * @return the value a range ends at, or null if this predicate is a single
+     *   comparison
+     */
+    public Field getEndField() {
+        return this.endValue;
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -43,7 +85,8 @@ public class IndexPredicate implements Serializable {
     */
     public boolean equals(IndexPredicate ipd) {
         // some code goes here
-        return fvalue.compare(this.op, ipd.fvalue);
+        return fvalue.compare(this.op, ipd.fvalue)
+                && (endOp == null || endValue.compare(endOp, ipd.fvalue));
     }
 
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -9,6 +10,9 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Number of child tuples handed to BufferPool.insertTuples at a time. */
+    public static final int BATCH_SIZE = 1024;
     private TransactionId t;
     private DbIterator child;
     private int tableId;
@@ -77,22 +81,26 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         if (this.is_inserted)
             return null;
         int count = 0;
+        ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
         while (this.child.hasNext()){
-            Tuple nextTuple = this.child.next();
-            try {
-                Database.getBufferPool().insertTuple(this.t, this.tableId, nextTuple);
-            }
-            catch (IOException e){
-                throw new DbException("Delete error.");
+            batch.add(this.child.next());
+            if (batch.size() == BATCH_SIZE || !this.child.hasNext()) {
+                try {
+                    Database.getBufferPool().insertTuples(this.t, this.tableId, batch);
+                }
+                catch (IOException e){
+                    throw new DbException("Insert error.");
+                }
+                count += batch.size();
+                batch = new ArrayList<Tuple>(BATCH_SIZE);
             }
-            count ++;
         }
         Tuple output = new Tuple(getTupleDesc());
         output.setField(0, new IntField(count));
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement. A page that has been referenced fewer than K times has
+ * an infinite backward K-distance and is always evicted before any page that
+ * has been referenced K times, so pages read once by a large SeqScan never
+ * push out the working set.
+ * <p>
+ * Resident pages live in two access-ordered lists: a cold list for pages with
+ * fewer than K references and a hot list for the rest. Hot pages are kept in
+ * LRU order of their last reference, which is the usual O(1) approximation of
+ * ordering by the K-th most recent reference. The reference counts of pages
+ * evicted from the cold list are remembered for a while (up to the pool
+ * capacity), so a page that comes back soon is promoted straight to hot.
+ * B+ tree root pointer and internal pages are treated as hot on first load.
+ */
+public class LRUKReplacementPolicy extends AbstractReplacementPolicy {
+
+    private final int k;
+    private final int historyCapacity;
+    private final LinkedHashMap<PageId, Integer> cold;
+    private final LinkedHashMap<PageId, Boolean> hot;
+    private final LinkedHashMap<PageId, Integer> history;
+
+    /**
+     * @param k the number of references after which a page is considered hot
+     * @param capacity the number of pages in the buffer pool; also bounds the
+     *   number of evicted pages whose reference history is kept
+     */
+    public LRUKReplacementPolicy(int k, int capacity) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.historyCapacity = Math.max(capacity, 1);
+        this.cold = new LinkedHashMap<>(16, 0.75f, true);
+        this.hot = new LinkedHashMap<>(16, 0.75f, true);
+        this.history = new LinkedHashMap<PageId, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, Integer> eldest) {
+                return size() > historyCapacity;
+            }
+        };
+    }
+
+    /** Record one more reference to a resident page. */
+    private void reference(PageId pid, int refs) {
+        if (refs >= k || isIndexInteriorPage(pid)) {
+            cold.remove(pid);
+            hot.put(pid, Boolean.TRUE);
+        } else {
+            cold.put(pid, refs);
+        }
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        countMiss();
+        if (hot.containsKey(pid)) {
+            hot.get(pid);
+            return;
+        }
+        Integer prev = cold.get(pid);
+        if (prev == null)
+            prev = history.remove(pid);
+        reference(pid, prev == null ? 1 : prev + 1);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        countHit();
+        if (hot.containsKey(pid)) {
+            hot.get(pid); // moves pid to the most recently used end
+            return;
+        }
+        Integer prev = cold.get(pid);
+        if (prev != null)
+            reference(pid, prev + 1);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        cold.remove(pid);
+        hot.remove(pid);
+    }
+
+    /**
+     * The page goes back on the list it was chosen from with its reference
+     * count, but at the most recently used end: a LinkedHashMap cannot put
+     * it back at the front, and a page that just turned out to be busy is a
+     * poor next victim anyway.
+     */
+    public synchronized void pageReinstated(PageId pid) {
+        if (hot.containsKey(pid) || cold.containsKey(pid))
+            return;
+        // a cold victim left its reference count in the history; a hot one did not
+        Integer refs = history.remove(pid);
+        if (refs != null)
+            cold.put(pid, refs);
+        else
+            hot.put(pid, Boolean.TRUE);
+    }
+
+    /**
+     * Takes the least recently used cold page the filter accepts, or else
+     * the least recently used hot one. Pages the filter rejects, such as
+     * dirty pages of running transactions, are passed over one at a time,
+     * so an eviction costs time linear in the number of rejected pages
+     * ahead of the victim; when most of the pool is dirty, as during a large
+     * uncommitted insert, each eviction scans nearly every entry.
+     */
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        for (Map.Entry<PageId, Integer> e : cold.entrySet()) {
+            if (filter.canEvict(e.getKey())) {
+                PageId pid = e.getKey();
+                history.put(pid, e.getValue());
+                cold.remove(pid);
+                countEviction();
+                return pid;
+            }
+        }
+        for (PageId pid : hot.keySet()) {
+            if (filter.canEvict(pid)) {
+                hot.remove(pid);
+                countEviction();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -5,213 +5,584 @@ import java.util.*;
 import java.lang.reflect.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager hands out locks for strict two-phase locking at two levels of
+ * granularity: tables and pages. Before locking a page, a transaction takes
+ * an intention lock on the page's table (IS to read, IX to write), so that
+ * a table-level S or X lock conflicts with every page lock under it. Once a
+ * transaction holds more than the escalation threshold of page locks on one
+ * table, the manager tries to replace them with a single S or X lock on the
+ * table; later requests for pages the table lock covers are then granted
+ * without touching any lock object.
+ * <p>
+ * Each lockable resource has a lock object holding its current holders and
+ * a FIFO queue of waiting requests. A request is granted when it is
+ * compatible with the holders and with every request queued ahead of it, so
+ * a writer waiting behind readers is not overtaken by readers that arrive
+ * later. A request from a transaction that already holds a weaker mode is an
+ * upgrade: it is granted at once if nobody else conflicts, and otherwise
+ * queued ahead of all ordinary requests, which would have to wait for the
+ * upgrader's current lock anyway.
+ * <p>
+ * A waiting request parks on the lock object until its holders or queue
+ * change. Before parking, the waiter records which transactions it waits
+ * for in the waits-for graph and checks whether any of them, directly or
+ * through the transactions they in turn wait for, is waiting for it. Every
+ * cycle is closed by some request, so searching only from the requester is
+ * enough to find it; the requester is then aborted.
+ * <p>
+ * B+ tree indexes can also lock key ranges, under the same intention lock
+ * on their table, so that readers need not lock whole leaf pages to prevent
+ * phantoms. A key range is a key value or the gap between it and the next
+ * smaller key; see {@link KeyRange}. Key-range locks are not escalated.
+ */
 public class LockManager {
-    private ConcurrentHashMap<PageId, Object> locks;
-    private ConcurrentHashMap<PageId, List<TransactionId>> sharedLocks;
-    private ConcurrentHashMap<PageId, TransactionId> exclusiveLocks;
-    private ConcurrentHashMap<TransactionId, List<PageId>> tid2PageId;
-    private ConcurrentHashMap<TransactionId, LinkedBlockingQueue<TransactionId>> depGraph;
-    private ConcurrentHashMap<TransactionId, LinkedBlockingQueue<PageId>> exlockTid2PageId;
 
-    public LockManager() {
-        sharedLocks = new ConcurrentHashMap<>();
-        exclusiveLocks = new ConcurrentHashMap<>();
-        tid2PageId = new ConcurrentHashMap<>();
-        locks = new ConcurrentHashMap<>();
-        depGraph = new ConcurrentHashMap<>();
-        exlockTid2PageId = new ConcurrentHashMap<>();
-    }
+    /** Lock modes; pages are only locked S or X. */
+    enum Mode {
+        IS, IX, S, X;
 
-    private boolean waitforReadPerm(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        locks.putIfAbsent(pid, new Object());
-        Object lock = locks.get(pid);
-        while(true) {
-            // use synchronized to prevent request at the same time
-            synchronized(lock){
-                TransactionId holder = exclusiveLocks.get(pid);
-                // if no exclusive lock on the pid or tid is the exclusive lock holder
-                if (holder == null || holder.equals(tid)){
-                    depGraph.remove(tid);
-                    sharedLocks.putIfAbsent(pid, new ArrayList<>());
-                    sharedLocks.get(pid).add(tid);
-                    return true;
-                }
-//                if (tid == null) System.out.println("h111hhh");
-
-                depGraph.putIfAbsent(tid, new LinkedBlockingQueue<>());
-                LinkedBlockingQueue<TransactionId> dependees = depGraph.get(tid);
-                // check if a new dependee is added
-                if (!dependees.contains(holder) && !holder.equals(tid)) {
-                    dependees.add(holder);
-                    detectDeadLock(tid);
-                }
+        boolean compatible(Mode other) {
+            switch (this) {
+            case IS: return other != X;
+            case IX: return other == IS || other == IX;
+            case S: return other == IS || other == S;
+            default: return false;
+            }
+        }
 
+        /** @return true if holding this mode grants everything other does */
+        boolean covers(Mode other) {
+            switch (this) {
+            case IS: return other == IS;
+            case IX: return other == IS || other == IX;
+            case S: return other == IS || other == S;
+            default: return true;
             }
         }
+
+        /**
+         * @return the weakest mode covering both this and other. S and IX
+         *   together would be SIX, which is not supported, so they give X.
+         */
+        Mode combine(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return X;
+        }
     }
 
-    private void detectDeadLock(TransactionId tid) throws TransactionAbortedException {
-        Set<TransactionId> visitedId = new HashSet<>();
-        for (TransactionId tidd : depGraph.keySet()) {
-            if (!visitedId.contains(tidd))
-                checkDeadLock(tidd, visitedId, new Stack<>());
+    /**
+     * A key value of a B+ tree index, standing for every tuple with that
+     * key, or the gap between it and the next smaller key in the index. A
+     * null key stands for the end of the index, so its gap is everything
+     * above the largest key. Readers lock the keys they read and the gaps
+     * between them S; writers lock the key they insert or delete X, and
+     * the gap the key goes into IX (insert) or the gap it leaves X (delete).
+     */
+    static final class KeyRange {
+        final int tableId;
+        final Field key;
+        final boolean gap;
+
+        KeyRange(int tableId, Field key, boolean gap) {
+            this.tableId = tableId;
+            this.key = key;
+            this.gap = gap;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyRange))
+                return false;
+            KeyRange r = (KeyRange) o;
+            return tableId == r.tableId && gap == r.gap
+                    && (key == null ? r.key == null : r.key != null && key.equals(r.key));
+        }
+
+        public int hashCode() {
+            return (tableId * 31 + (key == null ? 0 : key.hashCode())) * 2 + (gap ? 1 : 0);
+        }
+
+        public String toString() {
+            return (gap ? "gap below " : "key ") + (key == null ? "end" : key.toString())
+                    + " of table " + tableId;
         }
     }
 
-    private void checkDeadLock(TransactionId tid, Set<TransactionId> visitedId, Stack<TransactionId> dependents)  throws TransactionAbortedException {
+    /** A lock request waiting in a lock's queue. */
+    private static class Request {
+        final TransactionId tid;
+        final Mode mode;
+        final boolean upgrade;
 
-        visitedId.add(tid);
-//        if (tid == null) System.out.println("hhhhhnill");
-        if (!depGraph.containsKey(tid)) return;
-        LinkedBlockingQueue<TransactionId> dependees = depGraph.get(tid);
-        for (Iterator<TransactionId> iterator = dependees.iterator(); iterator.hasNext(); ){
-            TransactionId dependee = iterator.next();
-//        for (TransactionId dependee : dependees) {
-            // tid's dependee appears in the list of tid's dependents
-            if (dependents.contains(dependee)) {
-                throw new TransactionAbortedException();
+        Request(TransactionId tid, Mode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** The holders and waiters of one table or page; guarded by itself. */
+    private static class Lock {
+        final HashMap<TransactionId, Mode> holders = new HashMap<>();
+        final LinkedList<Request> queue = new LinkedList<>();
+        /** removed from its map once unused; only key-range locks are */
+        boolean retired;
+
+        /** Queue req behind earlier upgrades if it is one, else at the end. */
+        void enqueue(Request req) {
+            if (!req.upgrade) {
+                queue.addLast(req);
+                return;
+            }
+            ListIterator<Request> it = queue.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
+                }
             }
-            // check tid's dependee and tid become member of dependents this time
-            if (!visitedId.contains(dependee)) {
-                dependents.push(tid);
-                checkDeadLock(dependee, visitedId, dependents);
-                dependents.pop();
+            it.add(req);
+        }
+
+        /**
+         * @return the transactions req has to wait for: conflicting holders
+         *   and the owners of conflicting requests queued ahead of it
+         */
+        Set<TransactionId> blockers(Request req) {
+            Set<TransactionId> blockers = new HashSet<>();
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getValue().compatible(req.mode))
+                    blockers.add(e.getKey());
             }
+            for (Request r : queue) {
+                if (r == req)
+                    break;
+                if (!r.mode.compatible(req.mode))
+                    blockers.add(r.tid);
+            }
+            blockers.remove(req.tid);
+            return blockers;
         }
     }
 
-    private boolean waitforWritePerm(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        locks.putIfAbsent(pid, new Object());
-        Object lock = locks.get(pid);
-        while(true) {
-            // use synchronized to prevent request at the same time
-            synchronized(lock){
-                TransactionId holder = exclusiveLocks.get(pid);
-                List<TransactionId> holderList = sharedLocks.get(pid);
+    /** The locks held by one transaction; guarded by itself. */
+    private static class TxnLocks {
+        /** pages locked individually */
+        final Set<PageId> pages = new HashSet<>();
+        /** pages locked individually, by table */
+        final HashMap<Integer, Set<PageId>> pagesByTable = new HashMap<>();
+        /** pages locked exclusively, individually or through the table */
+        final Set<PageId> exclusivePages = new HashSet<>();
+        final HashMap<Integer, Mode> tables = new HashMap<>();
+        final Set<KeyRange> keyRanges = new HashSet<>();
+    }
+
+    /** Default number of page locks on one table above which a transaction escalates. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
 
-                if (!((holder!=null && !holder.equals(tid)) || (holderList!=null && ((holderList.size()==1 && !holderList.get(0).equals(tid)) || (holderList.size()>1))))) {
-                    depGraph.remove(tid);
-                    exclusiveLocks.put(pid, tid);
-                    exlockTid2PageId.putIfAbsent(tid, new LinkedBlockingQueue<>());
-                    exlockTid2PageId.get(tid).add(pid);
-                    return true;
-                }
-//                if (tid == null) System.out.println("h222hhh");
-
-                depGraph.putIfAbsent(tid, new LinkedBlockingQueue<>());
-                LinkedBlockingQueue<TransactionId> dependees = depGraph.get(tid);
-                boolean flag = false;
-                // check if a new dependee is added
-                if (holder!= null && !dependees.contains(holder) && !holder.equals(tid)) {
-                    dependees.add(holder);
-                    flag = true;
-                }
+    private final ConcurrentHashMap<Integer, Lock> tableLocks;
+    private final ConcurrentHashMap<PageId, Lock> pageLocks;
+    private final ConcurrentHashMap<KeyRange, Lock> keyLocks;
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txnLocks;
+    private final ConcurrentHashMap<TransactionId, LinkedBlockingQueue<PageId>> exlockTid2PageId;
+
+    /** transactions each blocked transaction is waiting for; guarded by itself */
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor;
 
-                if (holderList != null) {
-                    for (TransactionId holderId : holderList) {
-                        if (!dependees.contains(holderId) && !holderId.equals(tid)) {
-                            dependees.add(holderId);
-                            flag = true;
-                        }
+    private volatile int escalationThreshold;
+
+    private final AtomicLong lockWaits;
+    private final AtomicLong lockWaitNanos;
+    private final AtomicLong deadlocksDetected;
+    private final AtomicLong escalations;
+
+    /**
+     * Creates a LockManager. The escalation threshold can be set with the
+     * system property simpledb.LockManager.escalation.
+     */
+    public LockManager() {
+        tableLocks = new ConcurrentHashMap<>();
+        pageLocks = new ConcurrentHashMap<>();
+        keyLocks = new ConcurrentHashMap<>();
+        txnLocks = new ConcurrentHashMap<>();
+        exlockTid2PageId = new ConcurrentHashMap<>();
+        waitsFor = new HashMap<>();
+        escalationThreshold = Integer.getInteger("simpledb.LockManager.escalation",
+                DEFAULT_ESCALATION_THRESHOLD);
+        lockWaits = new AtomicLong(0);
+        lockWaitNanos = new AtomicLong(0);
+        deadlocksDetected = new AtomicLong(0);
+        escalations = new AtomicLong(0);
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getLockWaits() {
+        return lockWaits.get();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    /** @return the number of requests aborted because they closed a deadlock */
+    public long getDeadlocksDetected() {
+        return deadlocksDetected.get();
+    }
+
+    /** @return the number of times page locks were replaced by a table lock */
+    public long getEscalations() {
+        return escalations.get();
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int pages) {
+        this.escalationThreshold = pages;
+    }
+
+    private static <K> Lock lockFor(ConcurrentHashMap<K, Lock> locks, K key) {
+        Lock lock = locks.get(key);
+        if (lock == null) {
+            locks.putIfAbsent(key, new Lock());
+            lock = locks.get(key);
+        }
+        return lock;
+    }
+
+    private TxnLocks txnFor(TransactionId tid) {
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null) {
+            txnLocks.putIfAbsent(tid, new TxnLocks());
+            txn = txnLocks.get(tid);
+        }
+        return txn;
+    }
+
+    /**
+     * Acquire lock in the specified mode for tid, waiting in the lock's queue
+     * if needed, or without waiting if wait is false.
+     *
+     * @return the mode tid now holds, or null if wait is false and the
+     *   lock could not be granted at once
+     */
+    private Mode acquire(TransactionId tid, Lock lock, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        synchronized (lock) {
+            Mode held = lock.holders.get(tid);
+            if (held != null && held.covers(mode))
+                return held;
+            Mode target = held == null ? mode : held.combine(mode);
+            Request req = new Request(tid, target, held != null);
+            lock.enqueue(req);
+            long start = 0;
+            try {
+                while (true) {
+                    Set<TransactionId> blockers = lock.blockers(req);
+                    if (blockers.isEmpty()) {
+                        lock.queue.remove(req);
+                        lock.holders.put(tid, target);
+                        // requests behind this one may now be grantable
+                        lock.notifyAll();
+                        return target;
                     }
+                    if (!wait)
+                        return null;
+                    addWaitsFor(tid, blockers);
+                    if (start == 0)
+                        start = System.nanoTime();
+                    park(lock);
                 }
+            } finally {
+                if (lock.queue.remove(req))
+                    lock.notifyAll();
+                stopWaiting(tid, start);
+            }
+        }
+    }
 
-                if(flag) {
-                    detectDeadLock(tid);
-                }
+    private void release(TransactionId tid, Lock lock) {
+        synchronized (lock) {
+            if (lock.holders.remove(tid) != null)
+                lock.notifyAll();
+        }
+    }
+
+    /**
+     * Record that tid waits for holders, unless one of the holders is
+     * already waiting for tid, in which case tid is aborted instead.
+     */
+    private void addWaitsFor(TransactionId tid, Set<TransactionId> holders)
+            throws TransactionAbortedException {
+        synchronized (waitsFor) {
+            waitsFor.put(tid, holders);
+            if (reaches(holders, tid)) {
+                deadlocksDetected.incrementAndGet();
+                throw new TransactionAbortedException();
             }
         }
     }
 
+    /** Wait on a lock, which the caller holds, until it changes. */
+    private void park(Object lock) throws TransactionAbortedException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * @return true if target can be reached from any of the specified
+     *   transactions by following waits-for edges. Must hold waitsFor.
+     */
+    private boolean reaches(Set<TransactionId> from, TransactionId target) {
+        Set<TransactionId> visited = new HashSet<>();
+        Deque<TransactionId> stack = new ArrayDeque<>(from);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            if (t.equals(target))
+                return true;
+            if (!visited.add(t))
+                continue;
+            Set<TransactionId> next = waitsFor.get(t);
+            if (next != null)
+                stack.addAll(next);
+        }
+        return false;
+    }
+
+    /** Drop tid's waits-for edges and, if it waited, account for the wait. */
+    private void stopWaiting(TransactionId tid, long start) {
+        synchronized (waitsFor) {
+            waitsFor.remove(tid);
+        }
+        if (start != 0) {
+            lockWaits.incrementAndGet();
+            lockWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
     public boolean requestLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-//        TransactionId tran_id = tid;
-        if (pid == null) System.out.println("It's not my fault!");
+        return lock(tid, pid, perm, true);
+    }
+
+    /**
+     * Like {@link #requestLock}, but never waits.
+     *
+     * @return false if the page lock, or the intention lock on its table,
+     *   could not be granted at once
+     */
+    public boolean tryLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        return lock(tid, pid, perm, false);
+    }
+
+    private boolean lock(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
         if (tid == null) {
             throw new TransactionAbortedException();
         }
 
-        if (perm == Permissions.READ_ONLY) {
-            if (sharedLocks.containsKey(pid) && sharedLocks.get(pid).contains(tid)) {
-                return true;
+        boolean write = perm == Permissions.READ_WRITE;
+        Mode mode = write ? Mode.X : Mode.S;
+        Integer table = pid.getTableId();
+        TxnLocks txn = txnFor(tid);
+
+        Mode tableMode = lockTable(tid, txn, table, write ? Mode.IX : Mode.IS, wait);
+        if (tableMode == null)
+            return false;
+        if (!tableMode.covers(mode)) {
+            if (acquire(tid, lockFor(pageLocks, pid), mode, wait) == null)
+                return false;
+            synchronized (txn) {
+                if (txn.pages.add(pid)) {
+                    Set<PageId> onTable = txn.pagesByTable.get(table);
+                    if (onTable == null) {
+                        onTable = new HashSet<>();
+                        txn.pagesByTable.put(table, onTable);
+                    }
+                    onTable.add(pid);
+                }
             }
-            while(true){
-                if(waitforReadPerm(tid, pid))
-                    break;
+        }
+        if (write)
+            addExclusive(tid, txn, pid);
+        maybeEscalate(tid, txn, table);
+        return true;
+    }
+
+    /**
+     * Take the intention lock on a table that locks under it need.
+     *
+     * @return the mode tid now holds on the table, or null if wait is
+     *   false and the lock could not be granted at once
+     */
+    private Mode lockTable(TransactionId tid, TxnLocks txn, Integer table, Mode intention,
+            boolean wait) throws TransactionAbortedException {
+        Mode tableMode;
+        synchronized (txn) {
+            tableMode = txn.tables.get(table);
+        }
+        if (tableMode == null || !tableMode.covers(intention)) {
+            tableMode = acquire(tid, lockFor(tableLocks, table), intention, wait);
+            if (tableMode == null)
+                return null;
+            synchronized (txn) {
+                txn.tables.put(table, tableMode);
             }
-//            synchronized (exclusiveLocks) {
-//                if (exclusiveLocks.containsKey(pid)) {
-//                    if (pid == null) System.out.println("pid is Null!");
-//                    TransactionId tt = exclusiveLocks.get(pid);
-//                    if (tt == null) System.out.println("tt is Null!");
-//
-//                    if (tt.equals(tid)) {
-//                        return true;
-//                    }
-//                }
-//            }
-//            while(true){
-//                if(waitforWritePerm(tid, pid))
-//                    break;
-//            }
-        }
-        else if (perm == Permissions.READ_WRITE) {
-//            synchronized (exclusiveLocks) {
-            if (exclusiveLocks.containsKey(pid) && exclusiveLocks.get(pid).equals(tid)) {
-//                    if (pid == null) System.out.println("pid is Null!");
-//                TransactionId tt =
-////                    if (tt == null) System.out.println("tt is Null!");
-//
-//                if (tt.equals(tid)) {
-//                    return true;
-//                }
-                return true;
+        }
+        return tableMode;
+    }
+
+    /**
+     * Lock a key range of a B+ tree index in the specified mode: S, IX or
+     * X, as described for {@link KeyRange}. Like a page lock it is held
+     * until the transaction completes, and needs an intention lock on the
+     * table, which an S or X lock on the whole table may make redundant.
+     *
+     * @return false if wait is false and the lock, or the intention lock on
+     *   its table, could not be granted at once
+     */
+    boolean lockKeyRange(TransactionId tid, KeyRange range, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (tid == null) {
+            throw new TransactionAbortedException();
+        }
+
+        TxnLocks txn = txnFor(tid);
+        Mode tableMode = lockTable(tid, txn, range.tableId, mode == Mode.S ? Mode.IS : Mode.IX, wait);
+        if (tableMode == null)
+            return false;
+        // an intention lock on the table covers nothing under it
+        if (tableMode == Mode.X || (tableMode == Mode.S && mode == Mode.S))
+            return true;
+        while (true) {
+            Lock lock = lockFor(keyLocks, range);
+            synchronized (lock) {
+                if (lock.retired)
+                    continue;
+                if (acquire(tid, lock, mode, wait) == null)
+                    return false;
             }
-//            }
-            while(true){
-                if(waitforWritePerm(tid, pid))
-                    break;
+            synchronized (txn) {
+                txn.keyRanges.add(range);
             }
+            return true;
         }
+    }
 
-        // the page has not been requested yet
-        tid2PageId.putIfAbsent(tid, new ArrayList<>());
-        tid2PageId.get(tid).add(pid);
-        return true;
+    /**
+     * Release tid's lock on a key range, and drop the lock object if nobody
+     * else holds or wants it, since an index has far more keys than pages.
+     */
+    private void releaseKeyRange(TransactionId tid, KeyRange range) {
+        Lock lock = keyLocks.get(range);
+        synchronized (lock) {
+            if (lock.holders.remove(tid) != null)
+                lock.notifyAll();
+            if (lock.holders.isEmpty() && lock.queue.isEmpty()) {
+                lock.retired = true;
+                keyLocks.remove(range, lock);
+            }
+        }
+    }
 
+    private void addExclusive(TransactionId tid, TxnLocks txn, PageId pid) {
+        synchronized (txn) {
+            if (!txn.exclusivePages.add(pid))
+                return;
+        }
+        exlockTid2PageId.putIfAbsent(tid, new LinkedBlockingQueue<>());
+        exlockTid2PageId.get(tid).add(pid);
+    }
+
+    /**
+     * Replace tid's page locks on table with one table lock if there are
+     * more than the threshold. The table lock is only taken if it can be
+     * granted without waiting, so escalation never causes a deadlock; if it
+     * can't, the transaction keeps its page locks and tries again on its
+     * next page lock.
+     */
+    private void maybeEscalate(TransactionId tid, TxnLocks txn, Integer table)
+            throws TransactionAbortedException {
+        Mode target = Mode.S;
+        List<PageId> covered;
+        synchronized (txn) {
+            Set<PageId> onTable = txn.pagesByTable.get(table);
+            if (onTable == null || onTable.size() <= escalationThreshold)
+                return;
+            for (PageId pid : onTable) {
+                if (txn.exclusivePages.contains(pid)) {
+                    target = Mode.X;
+                    break;
+                }
+            }
+            covered = new ArrayList<>(onTable);
+        }
+        Mode granted = acquire(tid, lockFor(tableLocks, table), target, false);
+        if (granted == null)
+            return;
+        escalations.incrementAndGet();
+        synchronized (txn) {
+            txn.tables.put(table, granted);
+            txn.pagesByTable.remove(table);
+            txn.pages.removeAll(covered);
+        }
+        for (PageId pid : covered)
+            release(tid, pageLocks.get(pid));
     }
 
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return (tid2PageId.containsKey(tid) && tid2PageId.get(tid).contains(p));
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            return false;
+        synchronized (txn) {
+            Mode tableMode = txn.tables.get(p.getTableId());
+            return txn.pages.contains(p) || (tableMode != null && tableMode.covers(Mode.S));
+        }
     }
 
+    /**
+     * Release tid's lock on one page. Pages covered by a table lock stay
+     * locked until the transaction completes.
+     */
     public void releasePage(TransactionId tid, PageId pid) {
-        if (holdsLock(tid, pid)){
-            Object lock = locks.get(pid);
-            synchronized(lock) {
-                exclusiveLocks.remove(pid);
-                sharedLocks.getOrDefault(pid, new ArrayList<>()).remove(tid);
-            }
-            tid2PageId.get(tid).remove(pid);
-            exlockTid2PageId.remove(tid);
-
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            return;
+        synchronized (txn) {
+            if (!txn.pages.remove(pid))
+                return;
+            txn.pagesByTable.get(pid.getTableId()).remove(pid);
+            txn.exclusivePages.remove(pid);
         }
+        release(tid, pageLocks.get(pid));
+        LinkedBlockingQueue<PageId> exclusive = exlockTid2PageId.get(tid);
+        if (exclusive != null)
+            exclusive.remove(pid);
     }
 
     public void releasePages(TransactionId tid) {
-        if (tid2PageId.containsKey(tid)) {
-            List<PageId> pageIdList = tid2PageId.get(tid);
-            for (PageId pid : pageIdList) {
-                Object lock = locks.get(pid);
-                synchronized(lock) {
-                    exclusiveLocks.remove(pid);
-                    sharedLocks.getOrDefault(pid, new ArrayList<>()).remove(tid);
-                    depGraph.remove(tid);
-                }
+        TxnLocks txn = txnLocks.remove(tid);
+        if (txn != null) {
+            synchronized (txn) {
+                for (PageId pid : txn.pages)
+                    release(tid, pageLocks.get(pid));
+                for (KeyRange range : txn.keyRanges)
+                    releaseKeyRange(tid, range);
+                for (Integer table : txn.tables.keySet())
+                    release(tid, tableLocks.get(table));
             }
-            tid2PageId.remove(tid);
-            exlockTid2PageId.remove(tid);
         }
+        exlockTid2PageId.remove(tid);
     }
 
     public ConcurrentHashMap<TransactionId, LinkedBlockingQueue<PageId>> getExlockTid2PageId() {
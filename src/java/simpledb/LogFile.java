@@ -3,7 +3,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -51,21 +56,31 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
+<li> Each record is assembled in memory and appended to the file with a
+single write.
+
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is a one byte page type tag (HEAP_PAGE,
+BTREE_LEAF_PAGE, ...), an integer table id, an integer page number, an
+integer length and the page data itself, and can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  See
+LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the pages in the buffer pool whose committed changes were not yet on
+disk.  The format of the record is an integer count of the number of
+transactions, as well as a long integer transaction id and a long
+integer first record offset for each active transaction; then an
+integer count of dirty pages, and an integer table id, an integer page
+number and the long integer offset from which the page may need redo
+for each of them.  Checkpoints are fuzzy: no pages are written when one
+is taken.
 
 </ul>
 
@@ -88,10 +103,51 @@ public class LogFile {
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // bytes dropped from the front of the log by logTruncate; a log
+    // sequence number is a file offset plus this, so it stays valid
+    // across truncation
+    long truncatedBytes = 0; //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // changed only while holding this, but read without it by isActive
+    ConcurrentHashMap<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    // page type tags, see writePageData
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
+    // a record is assembled here and written to the log in one write;
+    // protected by this
+    private ByteBuffer record = ByteBuffer.allocateDirect(2 * BufferPool.getPageSize() + 64);
+    // the tag, table id, page number and length of page data being read;
+    // protected by this
+    private final ByteBuffer pageHeader = ByteBuffer.allocate(1 + 3 * INT_SIZE);
+
+    /** Default number of committers a group commit waits for. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+
+    /*
+     * Group commit: a committer appends its COMMIT record and then waits
+     * until some force covers it. The first committer to find no force in
+     * progress leads the next one; it may wait up to groupCommitDelayNanos
+     * for groupCommitBatch committers to gather, then forces the log once
+     * for all of them while later committers keep appending.
+     */
+    private long commitsAppended = 0; // protected by this
+    private final Object flushLock = new Object();
+    private long commitsDurable = 0; // protected by flushLock
+    private boolean flushing = false; // protected by flushLock
+    private int waitingCommits = 0; // protected by flushLock
+    private volatile long groupCommitDelayNanos;
+    private volatile int groupCommitBatch;
+
+    private final AtomicLong commits = new AtomicLong(0);
+    private final AtomicLong commitForces = new AtomicLong(0);
+    private final AtomicLong forces = new AtomicLong(0);
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -102,12 +158,21 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
+        The group commit delay (in microseconds, default 0) and batch
+        size can be set with the system properties
+        simpledb.LogFile.groupCommitDelay and
+        simpledb.LogFile.groupCommitBatch.
+
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        groupCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(
+                Long.getLong("simpledb.LogFile.groupCommitDelay", 0));
+        groupCommitBatch = Integer.getInteger("simpledb.LogFile.groupCommitBatch",
+                DEFAULT_GROUP_COMMIT_BATCH);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,18 +192,38 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeCheckpointOffset(raf.getChannel(), NO_CHECKPOINT_ID);
+            raf.seek(LONG_SIZE);
+            currentOffset = LONG_SIZE;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * @return true if the specified transaction has written a BEGIN record
+     *   and has not yet committed or aborted
+     *
+     * Not synchronized: the BufferPool asks while holding the lock of its
+     * replacement policy, which rollback and recover take in turn (through
+     * BufferPool.discardPage) while holding this.
+     */
+    public boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
     
+    /**
+     * @return the log sequence number the next record appended to the log
+     *   will get. Unlike file offsets, log sequence numbers stay valid when
+     *   the log is truncated.
+     */
+    public synchronized long nextLsn() {
+        return currentOffset + truncatedBytes;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,10 +243,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,21 +252,128 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk. Concurrent commits share a force
+        (group commit); this returns once a force covers the record.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = ++commitsAppended;
+        }
+        commits.incrementAndGet();
+        awaitDurable(seq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Wait until the commit with the specified sequence number is forced. */
+    private void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        synchronized (flushLock) {
+            waitingCommits++;
+            // a leader gathering a batch may be waiting for us
+            flushLock.notifyAll();
+        }
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    while (commitsDurable < seq && flushing) {
+                        try {
+                            flushLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (commitsDurable >= seq)
+                        return;
+                    flushing = true;
+                    long deadline = System.nanoTime() + groupCommitDelayNanos;
+                    long left;
+                    while (waitingCommits < groupCommitBatch
+                           && (left = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(flushLock, left);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                forceCommits();
+            }
+        } finally {
+            synchronized (flushLock) {
+                waitingCommits--;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Force the log for every commit appended so far; the caller leads. */
+    private void forceCommits() throws IOException {
+        long upTo;
+        FileChannel channel;
+        synchronized (this) {
+            upTo = commitsAppended;
+            channel = raf.getChannel();
+        }
+        try {
+            try {
+                // without holding this, so committers can keep appending
+                channel.force(true);
+                forces.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                // the log was truncated into a new file meanwhile
+                force();
+            }
+            commitForces.incrementAndGet();
+            synchronized (flushLock) {
+                commitsDurable = Math.max(commitsDurable, upTo);
+            }
+        } finally {
+            synchronized (flushLock) {
+                flushing = false;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Set how long, in microseconds, a group commit may wait for more
+     * committers before forcing the log, and how many committers it waits
+     * for at most.
+     */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        groupCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        groupCommitBatch = maxBatch;
+    }
+
+    /** @return the number of COMMIT records written */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** @return the number of log forces issued to make commits durable */
+    public long getCommitForces() {
+        return commitForces.get();
+    }
+
+    /** @return the number of log forces issued for any reason */
+    public long getForces() {
+        return forces.get();
+    }
+
+    /** @return the average number of log forces per commit */
+    public double getForcesPerCommit() {
+        long n = commits.get();
+        return n == 0 ? 0.0 : (double) commitForces.get() / n;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,7 +387,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,92 +397,186 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        beginRecord(UPDATE_RECORD, tid.getId());
+        writePageData(before);
+        writePageData(after);
+        endRecord();
+
+        Debug.log("WRITE OFFSET = " + currentOffset);
+    }
+
+    /** Start assembling a record of the specified type in the record buffer. */
+    private void beginRecord(int type, long tid) {
+        record.clear();
+        record.putInt(type);
+        record.putLong(tid);
+    }
+
+    /** Make room for the specified number of bytes in the record buffer. */
+    private void reserve(int bytes) {
+        if (record.remaining() >= bytes)
+            return;
+        int capacity = Math.max(record.capacity() * 2, record.position() + bytes);
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        record.flip();
+        bigger.put(record);
+        record = bigger;
+    }
+
+    /**
+     * Finish the record in the record buffer with its start offset and write
+     * it to the channel, at the channel's position, in one write.
+     */
+    private void appendRecord(FileChannel channel, long start) throws IOException {
+        reserve(LONG_SIZE);
+        record.putLong(start);
+        record.flip();
+        while (record.hasRemaining())
+            channel.write(record);
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
+    /** Append the record in the record buffer to the end of the log. */
+    private void endRecord() throws IOException {
+        appendRecord(raf.getChannel(), currentOffset);
         currentOffset = raf.getFilePointer();
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /**
+     * Append length bytes of the channel, starting at the specified
+     * position, to the record buffer.
+     */
+    private void copyToRecord(FileChannel channel, long position, int length) throws IOException {
+        reserve(length);
+        ByteBuffer dst = record.duplicate();
+        dst.limit(record.position() + length);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position() - record.position()) < 0)
+                throw new EOFException();
+        }
+        record.position(dst.limit());
+    }
+
+    /** Overwrite the checkpoint offset at the start of the log file. */
+    private void writeCheckpointOffset(FileChannel channel, long cpLoc) throws IOException {
+        record.clear();
+        record.putLong(cpLoc);
+        record.flip();
+        int written = 0;
+        while (record.hasRemaining())
+            written += channel.write(record, written);
+    }
+
+    /** @return the page type tag written to the log for p */
+    private static byte pageType(Page p) throws IOException {
+        Class<?> c = p.getClass();
+        if (c == HeapPage.class)
+            return HEAP_PAGE;
+        if (c == BTreeRootPtrPage.class)
+            return BTREE_ROOT_PTR_PAGE;
+        if (c == BTreeInternalPage.class)
+            return BTREE_INTERNAL_PAGE;
+        if (c == BTreeLeafPage.class)
+            return BTREE_LEAF_PAGE;
+        if (c == BTreeHeaderPage.class)
+            return BTREE_HEADER_PAGE;
+        throw new IOException("cannot log pages of type " + c.getName());
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Append the data of page p to the record buffer. */
+    void writePageData(Page p) throws IOException {
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        // page type tag
+        // table id
+        // page number
+        // page data length
+        // page data
+
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        reserve(1 + 3 * INT_SIZE + pageData.length);
+        record.put(pageType(p));
+        record.putInt(pid.getTableId());
+        record.putInt(pid.pageNumber());
+        record.putInt(pageData.length);
+        record.put(pageData);
+        //        Debug.log ("WROTE PAGE DATA, TYPE = " + pageType(p) + ", table = " +  pid.getTableId() + ", page = " + pid.pageNumber());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** Read the page type tag and the header that follows it into pageHeader. */
+    private byte readPageHeader(RandomAccessFile raf) throws IOException {
+        raf.readFully(pageHeader.array());
+        return pageHeader.get(0);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Page readPageData(RandomAccessFile raf) throws IOException {
+        byte type = readPageHeader(raf);
+        int tableId = pageHeader.getInt(1);
+        int pgNo = pageHeader.getInt(1 + INT_SIZE);
+        byte[] pageData = new byte[pageHeader.getInt(1 + 2 * INT_SIZE)];
+        raf.readFully(pageData);
+
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(tableId, pgNo), pageData);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage(new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR), pageData);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage(new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL),
+                    pageData, keyFields(tableId), compressesKeys(tableId));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage(new BTreePageId(tableId, pgNo, BTreePageId.LEAF),
+                    pageData, keyFields(tableId), compressesKeys(tableId));
+        case BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage(new BTreePageId(tableId, pgNo, BTreePageId.HEADER), pageData);
+        default:
+            throw new IOException("unknown page type " + type + " in log");
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** @return the key fields of the B+ tree with the specified table id */
+    private static int[] keyFields(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyFields();
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** @return whether the B+ tree with the specified table id compresses string keys */
+    private static boolean compressesKeys(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).compressesKeys();
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Skip over page data written by writePageData */
+    void skipPageData(RandomAccessFile raf) throws IOException {
+        readPageHeader(raf);
+        raf.seek(raf.getFilePointer() + pageHeader.getInt(1 + 2 * INT_SIZE));
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * Skip the body of a record whose type and transaction id have just been
+     * read, up to and including its trailing start offset.
+     */
+    private void skipRecord(RandomAccessFile raf, int type) throws IOException {
+        if (type == UPDATE_RECORD) {
+            skipPageData(raf);
+            skipPageData(raf);
+        } else if (type == CHECKPOINT_RECORD) {
+            int numXactions = raf.readInt();
+            raf.skipBytes(numXactions * 2 * LONG_SIZE);
+            int numDirty = raf.readInt();
+            raf.skipBytes(numDirty * (2 * INT_SIZE + LONG_SIZE));
         }
-        return newPage;
+        raf.readLong();
+    }
 
+    /** @return a key identifying a page by its table and page number */
+    private static long pageKey(int tableId, int pgNo) {
+        return ((long) tableId << 32) | (pgNo & 0xffffffffL);
+    }
+
+    /** Write a page image from the log to its file, bypassing the buffer pool. */
+    private void installPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(pid);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,51 +591,62 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: instead of flushing the buffer pool it
+        records which pages hold committed changes that are not on disk
+        yet, and from where in the log each may need to be redone.
+        Transactions keep running while it is taken; pages are trickled
+        out by the buffer pool's page cleaner.
+
+        @see BufferPool#cleanPages
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool bufferPool = Database.getBufferPool();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset = currentOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // a page whose redo point is set after this snapshot is logged
+            // after the checkpoint record, since we hold the log
+            Map<PageId, Long> dirtyPages = bufferPool.getDirtyPages();
+            beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            reserve(INT_SIZE + keys.size() * 2 * LONG_SIZE);
+            record.putInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                record.putLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                record.putLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            reserve(INT_SIZE + dirtyPages.size() * (2 * INT_SIZE + LONG_SIZE));
+            record.putInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                record.putInt(e.getKey().getTableId());
+                record.putInt(e.getKey().pageNumber());
+                // redo points older than the start of the file were set
+                // just before a truncation; any offset before theirs will do
+                record.putLong(Math.max(e.getValue() - truncatedBytes, LONG_SIZE));
             }
+            endRecord();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            writeCheckpointOffset(raf.getChannel(), startCpOffset);
+            force();
         }
 
         logTruncate();
@@ -386,13 +681,24 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // committed changes of dirty pages may need redo from here
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                raf.skipBytes(2 * INT_SIZE);
+                long redoOffset = raf.readLong();
+                if (redoOffset < minLogRecord) {
+                    minLogRecord = redoOffset;
+                }
+            }
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        FileChannel newChannel = logNew.getChannel();
+        writeCheckpointOffset(newChannel, (cpLoc - minLogRecord) + LONG_SIZE);
+        logNew.seek(LONG_SIZE);
 
         raf.seek(minLogRecord);
 
@@ -405,25 +711,34 @@ public class LogFile {
 
                 Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                beginRecord(type, record_tid);
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    // page data does not depend on where it is in the log
+                    long pageStart = raf.getFilePointer();
+                    skipPageData(raf);
+                    skipPageData(raf);
+                    copyToRecord(raf.getChannel(), pageStart,
+                            (int) (raf.getFilePointer() - pageStart));
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    reserve(INT_SIZE + numXactions * 2 * LONG_SIZE);
+                    record.putInt(numXactions);
                     while (numXactions-- > 0) {
                         long xid = raf.readLong();
                         long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        record.putLong(xid);
+                        record.putLong((xoffset - minLogRecord) + LONG_SIZE);
+                    }
+                    int numDirty = raf.readInt();
+                    reserve(INT_SIZE + numDirty * (2 * INT_SIZE + LONG_SIZE));
+                    record.putInt(numDirty);
+                    while (numDirty-- > 0) {
+                        record.putInt(raf.readInt());
+                        record.putInt(raf.readInt());
+                        record.putLong((raf.readLong() - minLogRecord) + LONG_SIZE);
                     }
                     break;
                 case BEGIN_RECORD:
@@ -432,14 +747,15 @@ public class LogFile {
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
                 raf.readLong();
+                appendRecord(newChannel, newStart);
 
             } catch (EOFException e) {
                 break;
             }
         }
 
+        logNew.close();
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
         raf.close();
@@ -450,6 +766,7 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        truncatedBytes += minLogRecord - LONG_SIZE;
         //print();
     }
 
@@ -467,6 +784,30 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+
+                // the first before image of each page is its state before tid
+                LinkedHashMap<PageId, Page> beforeImages = new LinkedHashMap<PageId, Page>();
+                raf.seek(firstLogRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    if (type == UPDATE_RECORD && recordTid == tid.getId()) {
+                        Page before = readPageData(raf);
+                        skipPageData(raf);
+                        raf.readLong();
+                        if (!beforeImages.containsKey(before.getId()))
+                            beforeImages.put(before.getId(), before);
+                    } else {
+                        skipRecord(raf, type);
+                    }
+                }
+                raf.seek(currentOffset);
+
+                for (Page before : beforeImages.values())
+                    installPage(before);
             }
         }
     }
@@ -477,6 +818,7 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
         } catch (IOException e) {
@@ -494,6 +836,117 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                tidToFirstLogRecord.clear();
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    raf.setLength(0);
+                    writeCheckpointOffset(raf.getChannel(), NO_CHECKPOINT_ID);
+                    raf.seek(LONG_SIZE);
+                    currentOffset = LONG_SIZE;
+                    return;
+                }
+
+                // transactions active at the checkpoint may have updates
+                // before it, and so may the pages that were dirty then
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = LONG_SIZE;
+                Set<Long> seen = new HashSet<Long>();
+                Map<Long, Long> dirtyPages = new HashMap<Long, Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    start = cpLoc;
+                    raf.seek(cpLoc);
+                    raf.readInt();
+                    raf.readLong();
+                    int numXactions = raf.readInt();
+                    for (int i = 0; i < numXactions; i++) {
+                        seen.add(raf.readLong());
+                        start = Math.min(start, raf.readLong());
+                    }
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        long page = pageKey(raf.readInt(), raf.readInt());
+                        long redoOffset = raf.readLong();
+                        dirtyPages.put(page, redoOffset);
+                        start = Math.min(start, redoOffset);
+                    }
+                }
+
+                // analysis: find the outcome of every transaction and
+                // where its updates are
+                Set<Long> committed = new HashSet<Long>();
+                Set<Long> aborted = new HashSet<Long>();
+                List<Long> updates = new ArrayList<Long>();
+                List<Long> updateTids = new ArrayList<Long>();
+                long end = start;
+                raf.seek(start);
+                try {
+                    while (true) {
+                        long offset = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+                        skipRecord(raf, type);
+                        switch (type) {
+                        case COMMIT_RECORD:
+                            committed.add(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            aborted.add(recordTid);
+                            break;
+                        case UPDATE_RECORD:
+                            updates.add(offset);
+                            updateTids.add(recordTid);
+                            seen.add(recordTid);
+                            break;
+                        case BEGIN_RECORD:
+                            seen.add(recordTid);
+                            break;
+                        }
+                        end = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // a record torn by the crash is dropped below
+                }
+
+                // redo committed updates in log order, then undo the
+                // updates of transactions that never finished, newest first.
+                // Before the checkpoint only pages it lists as dirty need
+                // redo, and only from their redo offset on.
+                for (int i = 0; i < updates.size(); i++) {
+                    long offset = updates.get(i);
+                    if (committed.contains(updateTids.get(i))) {
+                        raf.seek(offset + INT_SIZE + LONG_SIZE);
+                        readPageHeader(raf);
+                        if (cpLoc != NO_CHECKPOINT_ID && offset < cpLoc) {
+                            Long redoOffset = dirtyPages.get(pageKey(
+                                    pageHeader.getInt(1), pageHeader.getInt(1 + INT_SIZE)));
+                            if (redoOffset == null || offset < redoOffset)
+                                continue;
+                        }
+                        raf.seek(raf.getFilePointer() + pageHeader.getInt(1 + 2 * INT_SIZE));
+                        installPage(readPageData(raf));
+                    }
+                }
+                Set<Long> losers = new HashSet<Long>(seen);
+                losers.removeAll(committed);
+                losers.removeAll(aborted);
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    if (losers.contains(updateTids.get(i))) {
+                        raf.seek(updates.get(i) + INT_SIZE + LONG_SIZE);
+                        installPage(readPageData(raf));
+                    }
+                }
+
+                // the losers are rolled back now; record that, so a later
+                // recovery leaves them alone
+                raf.setLength(end);
+                raf.seek(end);
+                currentOffset = end;
+                for (Long loser : losers) {
+                    beginRecord(ABORT_RECORD, loser);
+                    endRecord();
+                }
+                force();
             }
          }
     }
@@ -501,10 +954,80 @@ public class LogFile {
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            long pos = raf.getFilePointer();
+            try {
+                raf.seek(0);
+                if (raf.length() < LONG_SIZE) {
+                    System.out.println("(empty log)");
+                    return;
+                }
+                long cpLoc = raf.readLong();
+                System.out.println("last checkpoint: "
+                        + (cpLoc == NO_CHECKPOINT_ID ? "none" : String.valueOf(cpLoc)));
+                while (true) {
+                    long offset = raf.getFilePointer();
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    StringBuilder line = new StringBuilder();
+                    line.append(offset).append(": ");
+                    switch (type) {
+                    case ABORT_RECORD:
+                        line.append("ABORT tid=").append(recordTid);
+                        break;
+                    case COMMIT_RECORD:
+                        line.append("COMMIT tid=").append(recordTid);
+                        break;
+                    case BEGIN_RECORD:
+                        line.append("BEGIN tid=").append(recordTid);
+                        break;
+                    case UPDATE_RECORD:
+                        Page before = readPageData(raf);
+                        skipPageData(raf);
+                        line.append("UPDATE tid=").append(recordTid)
+                            .append(" page=").append(before.getId().getTableId())
+                            .append("/").append(before.getId().pageNumber());
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = raf.readInt();
+                        line.append("CHECKPOINT active=[");
+                        for (int i = 0; i < numXactions; i++) {
+                            long xid = raf.readLong();
+                            long first = raf.readLong();
+                            line.append(i > 0 ? ", " : "").append(xid).append("@").append(first);
+                        }
+                        int numDirty = raf.readInt();
+                        line.append("] dirty=[");
+                        for (int i = 0; i < numDirty; i++) {
+                            int tableId = raf.readInt();
+                            int pgNo = raf.readInt();
+                            long redoOffset = raf.readLong();
+                            line.append(i > 0 ? ", " : "").append(tableId).append("/").append(pgNo)
+                                .append("@").append(redoOffset);
+                        }
+                        line.append("]");
+                        break;
+                    default:
+                        line.append("UNKNOWN type=").append(type);
+                        System.out.println(line);
+                        return;
+                    }
+                    long recordStart = raf.readLong();
+                    if (recordStart != offset)
+                        line.append(" (bad start offset ").append(recordStart).append(")");
+                    System.out.println(line);
+                }
+            } catch (EOFException e) {
+                // end of log
+            } finally {
+                raf.seek(pos);
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forces.incrementAndGet();
     }
 
 }
@@ -48,12 +48,21 @@ public interface Page {
 
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
+        <p>
+        Pages take their before image lazily, on the first modification after
+        the last commit, so an unmodified page returns its current contents.
     */
     public Page getBeforeImage();
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content is the new before image; drop any saved copy.
      */
     public void setBeforeImage();
+
+    /**
+     * @return the number of bytes held for the before image of this page,
+     *   0 if the page has not been modified since it was last committed
+     */
+    public int getBeforeImageSize();
 }
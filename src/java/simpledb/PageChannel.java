@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * PageChannel does positional page reads and writes on the FileChannel of a
+ * DbFile. Unlike seek followed by read/write on a RandomAccessFile,
+ * positional I/O does not touch a shared file pointer, so threads reading
+ * different pages of the same file proceed in parallel without locking.
+ * <p>
+ * The file is opened on first use. A FileChannel is closed when a thread
+ * blocked in I/O on it is interrupted; in that case the channel is reopened
+ * and the operation retried, so one interrupted reader cannot make the
+ * whole table unreadable.
+ */
+class PageChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    /**
+     * @param f the file to read and write; it is created on first use if it
+     *   does not exist yet
+     */
+    PageChannel(File f) {
+        this.file = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null)
+            ch = reopen(null);
+        return ch;
+    }
+
+    private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+        if (channel == closed)
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Read up to data.length bytes starting at position, stopping early only
+     * at end of file.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *   end of the file
+     */
+    int read(byte[] data, long position) throws IOException {
+        FileChannel ch = channel();
+        try {
+            return readFully(ch, data, position);
+        } catch (ClosedChannelException e) {
+            if (Thread.currentThread().isInterrupted())
+                throw e;
+            return readFully(reopen(ch), data, position);
+        }
+    }
+
+    /** Write all of data starting at position. */
+    void write(byte[] data, long position) throws IOException {
+        write(ByteBuffer.wrap(data), position);
+    }
+
+    /**
+     * Write the remaining bytes of data starting at position. The position
+     * of data is left unspecified.
+     */
+    void write(ByteBuffer data, long position) throws IOException {
+        FileChannel ch = channel();
+        int start = data.position();
+        try {
+            writeFully(ch, data, position);
+        } catch (ClosedChannelException e) {
+            if (Thread.currentThread().isInterrupted())
+                throw e;
+            data.position(start);
+            writeFully(reopen(ch), data, position);
+        }
+    }
+
+    /**
+     * Write the remaining bytes of each of data, one after the other,
+     * starting at position, with a single gathering write where the
+     * operating system allows. The positions of data are left unspecified.
+     */
+    synchronized void write(ByteBuffer[] data, long position) throws IOException {
+        FileChannel ch = channel();
+        int[] starts = new int[data.length];
+        for (int i = 0; i < data.length; i++)
+            starts[i] = data[i].position();
+        try {
+            writeFully(ch, data, position);
+        } catch (ClosedChannelException e) {
+            if (Thread.currentThread().isInterrupted())
+                throw e;
+            for (int i = 0; i < data.length; i++)
+                data[i].position(starts[i]);
+            writeFully(reopen(ch), data, position);
+        }
+    }
+
+    private static int readFully(FileChannel ch, byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0)
+                break;
+        }
+        if (buf.position() == 0 && data.length > 0)
+            return -1;
+        return buf.position();
+    }
+
+    /*
+     * A gathering write goes to the channel's own position. Only this class
+     * moves it, and only in the synchronized write above; positional reads
+     * and writes ignore it.
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer[] bufs, long position) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buf : bufs)
+            remaining += buf.remaining();
+        ch.position(position);
+        while (remaining > 0)
+            remaining -= ch.write(bufs);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position() - start);
+        }
+    }
+}
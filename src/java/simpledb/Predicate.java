@@ -106,6 +106,19 @@ public class Predicate implements Serializable {
         return t != null && t.getField(this.field).compare(this.op, this.operand);
     }
 
+    /**
+     * Compares a value of the field number specified in the constructor to
+     * the operand, as {@link #filter} does for the corresponding field of a
+     * tuple. Used to test tuples that have not been materialized yet.
+     *
+     * @param f
+     *            The field value to compare against
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filterField(Field f) {
+        return f != null && f.compare(this.op, this.operand);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
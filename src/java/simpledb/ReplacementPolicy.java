@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every page it loads, every
+ * hit on a resident page and every page it drops; the policy keeps whatever
+ * bookkeeping it needs to pick a victim without walking the whole pool.
+ * <p>
+ * Implementations also count hits, misses and evictions so that different
+ * policies can be compared on the same workload.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see LRUKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy whether a resident page may be evicted right now
+     * (e.g. it is not dirty and not pinned).
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page that was not resident is added to the pool.
+     * Counts as a miss.
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called when a resident page is requested again. Counts as a hit.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the pool without going through
+     * {@link #chooseVictim}, e.g. from BufferPool.discardPage().
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Called when a page returned by {@link #chooseVictim} stays resident
+     * after all, e.g. because it could not be written or became busy. The
+     * page becomes a candidate again with the reference history it had, but
+     * a policy may put it back in a different place than it was chosen
+     * from; this is neither a miss nor a reference to it.
+     */
+    public void pageReinstated(PageId pid);
+
+    /**
+     * Picks a resident page accepted by filter, forgets it and returns it.
+     * The caller is responsible for actually dropping the page.
+     *
+     * @return the evicted page id, or null if no resident page may be evicted
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /** @return the number of requests served from the pool */
+    public long getHits();
+
+    /** @return the number of requests that had to read the page */
+    public long getMisses();
+
+    /** @return the number of pages given up through {@link #chooseVictim} */
+    public long getEvictions();
+
+    /** Reset the hit, miss and eviction counters to zero. */
+    public void resetStats();
+}
@@ -82,6 +82,17 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Lets the scan skip tuples that fail p without decoding them, when the
+     * table is a HeapFile. Must be called before open(); the caller still
+     * applies p itself, since other files ignore it.
+     */
+    public void pushPredicate(Predicate p) {
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (f instanceof HeapFile)
+            this.dbFileItr = ((HeapFile) f).iterator(this.tid, p);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         this.dbFileItr.open();
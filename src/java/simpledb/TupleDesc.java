@@ -12,6 +12,8 @@ public class TupleDesc implements Serializable {
     /* all the field TDItems included */
     private List<TDItem> tdAr;
     private int numFields;
+    /* byte offset of each field in a serialized tuple, computed on first use */
+    private transient int[] fieldOffsets;
     /**
      * A help class to facilitate organizing the information of each field
      * */
@@ -227,6 +229,34 @@ public class TupleDesc implements Serializable {
         return tupleSize;
     }
 
+    /**
+     * Gets the byte offset of the ith field within a serialized tuple of this
+     * TupleDesc.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field, in bytes
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i >= this.numFields || i < 0){
+            throw new NoSuchElementException("i is not a valid field reference!");
+        }
+        int[] offsets = this.fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[this.numFields];
+            int offset = 0;
+            int idx = 0;
+            for (TDItem td : tdAr){
+                offsets[idx++] = offset;
+                offset += td.fieldType.getLen();
+            }
+            this.fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
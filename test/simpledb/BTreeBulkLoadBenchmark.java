@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Benchmark comparing building a B+ tree index by inserting tuples one at a
+ * time through the buffer pool with BTreeFile.bulkLoad, for a few table
+ * sizes and fill factors. Reports the build time and the size of the
+ * resulting file.
+ * <p>
+ * Run with: ant runbench -Dbench=BTreeBulkLoadBenchmark
+ */
+public class BTreeBulkLoadBenchmark {
+
+    private static final int[] ROWS = { 20000, 100000, 200000 };
+    private static final int COMMIT_EVERY = 500;
+
+    private static BTreeFile emptyTree() throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    }
+
+    /** Insert every tuple on its own, committing every COMMIT_EVERY tuples. */
+    static long insertOneByOne(BTreeFile bf, ArrayList<Tuple> tuples) throws Exception {
+        long start = System.nanoTime();
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        for (Tuple tup : tuples) {
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+            if (++n % COMMIT_EVERY == 0) {
+                t.commit();
+                t = new Transaction();
+                t.start();
+            }
+        }
+        t.commit();
+        return System.nanoTime() - start;
+    }
+
+    static long bulkLoad(BTreeFile bf, ArrayList<Tuple> tuples, double fillFactor) throws Exception {
+        long start = System.nanoTime();
+        Transaction t = new Transaction();
+        t.start();
+        TupleIterator source = new TupleIterator(bf.getTupleDesc(), tuples);
+        source.open();
+        bf.bulkLoad(t.getId(), source, fillFactor);
+        source.close();
+        t.commit();
+        return System.nanoTime() - start;
+    }
+
+    /** Copy the tuples, since inserting a tuple sets its record id. */
+    private static ArrayList<Tuple> copy(ArrayList<Tuple> tuples) {
+        ArrayList<Tuple> out = new ArrayList<Tuple>(tuples.size());
+        for (Tuple t : tuples) {
+            Tuple c = new Tuple(t.getTupleDesc());
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                c.setField(i, t.getField(i));
+            out.add(c);
+        }
+        return out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.resetBufferPool(1000);
+        System.out.println("rows     one-by-one (ms)  pages   bulk 1.0 (ms)  pages   bulk 0.7 (ms)  pages");
+        for (int rows : ROWS) {
+            ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, rows, 0, 1 << 20);
+
+            BTreeFile a = emptyTree();
+            long single = insertOneByOne(a, copy(tuples));
+            BTreeFile b = emptyTree();
+            long full = bulkLoad(b, copy(tuples), 1.0);
+            BTreeFile c = emptyTree();
+            long partial = bulkLoad(c, copy(tuples), 0.7);
+
+            System.out.printf("%7d  %15.1f  %5d  %14.1f  %5d  %14.1f  %5d%n", rows,
+                    single / 1e6, a.numPages(), full / 1e6, b.numPages(),
+                    partial / 1e6, c.numPages());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int load(List<Tuple> tuples, double fillFactor) throws Exception {
+        TupleIterator source = new TupleIterator(bf.getTupleDesc(), tuples);
+        source.open();
+        int n = bf.bulkLoad(tid, source, fillFactor);
+        source.close();
+        return n;
+    }
+
+    private void checkContents(List<Tuple> tuples) throws Exception {
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (Tuple t : tuples)
+            expected.add(((IntField) t.getField(0)).getValue());
+        Collections.sort(expected);
+
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        ArrayList<Integer> actual = new ArrayList<Integer>();
+        while (it.hasNext())
+            actual.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * A bulk load builds a valid, sorted tree with packed leaves.
+     */
+    @Test public void bulkLoadFull() throws Exception {
+        ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 31000, 0, 5000);
+        assertEquals(31000, load(tuples, 1.0));
+        checkContents(tuples);
+
+        // packed leaves: no more pages than the minimum, plus a few internal ones
+        int perLeaf = BTreeUtility.getNumTuplesPerPage(2);
+        assertTrue(bf.numPages() <= 1 + (31000 + perLeaf - 1) / perLeaf + 2);
+    }
+
+    /**
+     * A lower fill factor leaves room in each leaf, and the tree still takes
+     * ordinary inserts afterwards.
+     */
+    @Test public void bulkLoadFillFactor() throws Exception {
+        ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 10000, 0, 5000);
+        load(tuples, 0.7);
+        checkContents(tuples);
+
+        Tuple extra = BTreeUtility.getBTreeTuple(2500, 2);
+        Database.getBufferPool().insertTuple(tid, bf.getId(), extra);
+        tuples.add(extra);
+        checkContents(tuples);
+    }
+
+    /**
+     * Aborting a bulk load leaves the tree empty.
+     */
+    @Test public void bulkLoadAbort() throws Exception {
+        load(BTreeUtility.generateRandomTuples(2, 2000, 0, 5000), 1.0);
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+        assertNull(bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId());
+    }
+
+    /**
+     * Bulk loading a tree whose root is an empty leaf frees that leaf for reuse.
+     */
+    @Test public void bulkLoadFreesEmptyRoot() throws Exception {
+        Tuple t = BTreeUtility.getBTreeTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+        Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        BTreePageId oldRootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+        assertNotNull(oldRootId);
+
+        ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 2000, 0, 5000);
+        load(tuples, 1.0);
+        checkContents(tuples);
+        assertEquals(oldRootId.pageNumber(), bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+    }
+
+    /**
+     * Only an empty tree can be bulk loaded.
+     */
+    @Test(expected=DbException.class) public void bulkLoadNonEmpty() throws Exception {
+        Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        load(BTreeUtility.generateRandomTuples(2, 10, 0, 5000), 1.0);
+    }
+
+    /**
+     * ExternalSort merges spilled runs into one sorted stream.
+     */
+    @Test public void externalSortSpills() throws Exception {
+        ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 1000, 0, 100000);
+        ExternalSort sorter = new ExternalSort(bf.getTupleDesc(),
+                new BTreeFileEncoder.TupleComparator(0), 64);
+        for (Tuple t : tuples)
+            sorter.add(t);
+        assertEquals(1000, sorter.size());
+
+        Iterator<Tuple> it = sorter.sorted();
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            int v = ((IntField) it.next().getField(0)).getValue();
+            assertTrue(v >= last);
+            last = v;
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
@@ -172,6 +172,166 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * A split that needs a page another transaction has locked is undone, and
+	 * the inserting transaction waits without holding the tree latch, so
+	 * other transactions can still search the tree. Once the lock is granted
+	 * the split is redone with the page it added to the file the first time.
+	 */
+	@Test
+	public void testSplitWaitsOutsideLatch() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		BufferPool bp = Database.getBufferPool();
+
+		// ten packed leaves under a root with room for more
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 10 * BTreeUtility.getNumTuplesPerPage(2); i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(2 * i, 2));
+		}
+		TupleIterator source = new TupleIterator(bf.getTupleDesc(), tuples);
+		source.open();
+		bf.bulkLoad(tid, source, 1.0);
+		source.close();
+		BTreeLeafPage first = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+		bp.transactionComplete(tid);
+		int numPages = bf.numPages();
+
+		// splitting the second leaf changes its left sibling, which tid2 has read
+		TransactionId tid2 = new TransactionId();
+		bp.getPage(tid2, first.getId(), Permissions.READ_ONLY);
+		TransactionId tid1 = new TransactionId();
+		BTreeUtility.BTreeWriter writer = new BTreeUtility.BTreeWriter(tid1, bf, 
+				2 * BTreeUtility.getNumTuplesPerPage(2) + 1, 1);
+		writer.start();
+		Thread.sleep(200);
+		assertFalse(writer.succeeded());
+		assertNull(writer.getError());
+
+		tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+				new IntField(2 * (tuples.size() - 1))));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+
+		bp.transactionComplete(tid2);
+		writer.join();
+		assertTrue(writer.succeeded());
+		bp.transactionComplete(tid1);
+		assertEquals(numPages + 1, bf.numPages());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * String keys sharing a prefix longer than an internal page keeps are
+	 * inserted in random order into a tree that compresses them, some deleted, and the rest bulk loaded into a
+	 * second tree; both trees stay valid and every key is found once.
+	 */
+	@Test
+	public void testCompressedStringKeys() throws Exception {
+		Database.reset();
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 3000; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(String.format("http://www.example.com/catalog/items/%06d", i), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			tuples.add(t);
+		}
+		Collections.shuffle(tuples, new Random(7));
+
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td, true);
+		Database.getCatalog().addTable(bf);
+		for(Tuple t : tuples) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		assertTrue(((BTreePage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY)).isCompressed());
+		for(int i = 0; i < tuples.size(); i += 3) {
+			Database.getBufferPool().deleteTuple(tid, tuples.get(i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+
+		ArrayList<Tuple> kept = new ArrayList<Tuple>();
+		for(int i = 0; i < tuples.size(); i++) {
+			if(i % 3 != 0) {
+				kept.add(tuples.get(i));
+			}
+		}
+		File g = File.createTempFile("strings", ".dat");
+		g.deleteOnExit();
+		BTreeFile loaded = new BTreeFile(g, 0, td, true);
+		Database.getCatalog().addTable(loaded);
+		tid = new TransactionId();
+		TupleIterator source = new TupleIterator(td, kept);
+		source.open();
+		loaded.bulkLoad(tid, source, 0.9);
+		source.close();
+		BTreeChecker.checkRep(loaded, tid, new HashMap<PageId, Page>(), true);
+
+		for(BTreeFile tree : new BTreeFile[] { bf, loaded }) {
+			for(int i = 0; i < tuples.size(); i++) {
+				DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Op.EQUALS, tuples.get(i).getField(0)));
+				it.open();
+				int found = 0;
+				while(it.hasNext()) {
+					assertEquals(tuples.get(i).getField(1), it.next().getField(1));
+					found++;
+				}
+				it.close();
+				assertEquals(i % 3 == 0 ? 0 : 1, found);
+			}
+		}
+	}
+
+	/**
+	 * Whether keys are compressed is recorded in the file, so it is read
+	 * correctly when opened without saying, and can't be opened as the other.
+	 */
+	@Test
+	public void testKeyCompressionIsStoredInFile() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td, true);
+		Database.getCatalog().addTable(bf);
+		for(int i = 0; i < 1000; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(String.format("http://www.example.com/catalog/items/%06d", i), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeFile reopened = new BTreeFile(f, 0, td);
+		assertTrue(reopened.compressesKeys());
+		Database.getCatalog().addTable(reopened);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(reopened, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = reopened.indexIterator(tid, new IndexPredicate(Op.EQUALS, 
+				new StringField("http://www.example.com/catalog/items/000777", Type.STRING_LEN)));
+		it.open();
+		assertEquals(new IntField(777), it.next().getField(1));
+		assertFalse(it.hasNext());
+		it.close();
+
+		try {
+			new BTreeFile(f, 0, td, false);
+			fail("opened a compressed file as uncompressed");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
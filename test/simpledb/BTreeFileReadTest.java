@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.Predicate.Op;
 
+import java.io.File;
 import java.util.*;
 
 import org.junit.After;
@@ -201,6 +202,76 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.indexIterator() on a B+ tree keyed on two
+	 * fields, with predicates on the whole key, on its first field, and on
+	 * ranges within one value of the first field
+	 */
+	@Test public void compositeKeyIndexIterator() throws Exception {
+		TupleDesc td3 = Utility.getTupleDesc(3);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int tenant = 0; tenant < 20; tenant++) {
+			for(int ts = 0; ts < 500; ts++) {
+				tuples.add(BTreeUtility.getBTreeTuple(new int[] { tenant, ts, tenant * 500 + ts }));
+			}
+		}
+		Collections.shuffle(tuples, new Random(3));
+
+		File file = File.createTempFile("composite", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = new BTreeFile(file, new int[] { 0, 1 }, td3);
+		Database.getCatalog().addTable(bf);
+		for(Tuple t : tuples) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+
+		File g = File.createTempFile("composite", ".dat");
+		g.deleteOnExit();
+		BTreeFile loaded = new BTreeFile(g, new int[] { 0, 1 }, td3);
+		Database.getCatalog().addTable(loaded);
+		tid = new TransactionId();
+		TupleIterator source = new TupleIterator(td3, tuples);
+		source.open();
+		loaded.bulkLoad(tid, source, 1.0);
+		source.close();
+		BTreeChecker.checkRep(loaded, tid, new HashMap<PageId, Page>(), true);
+
+		IntField seven = new IntField(7);
+		CompositeField key = new CompositeField(seven, new IntField(100));
+		CompositeField tenant = new CompositeField(seven);
+		for(BTreeFile tree : new BTreeFile[] { bf, loaded }) {
+			assertEquals(1, countInOrder(tree, new IndexPredicate(Op.EQUALS, key), 7 * 500 + 100));
+			assertEquals(500, countInOrder(tree, new IndexPredicate(Op.EQUALS, tenant), 7 * 500));
+			assertEquals(500, countInOrder(tree, new IndexPredicate(Op.EQUALS, seven), 7 * 500));
+			assertEquals(12 * 500, countInOrder(tree, new IndexPredicate(Op.GREATER_THAN, tenant), 8 * 500));
+			assertEquals(7 * 500 + 100, countInOrder(tree, new IndexPredicate(Op.LESS_THAN, key), 0));
+			assertEquals(400, countInOrder(tree, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key,
+					Op.LESS_THAN_OR_EQ, tenant), 7 * 500 + 100));
+			assertEquals(99, countInOrder(tree, new IndexPredicate(Op.GREATER_THAN, key,
+					Op.LESS_THAN, new CompositeField(seven, new IntField(200))), 7 * 500 + 101));
+			assertEquals(0, countInOrder(tree, new IndexPredicate(Op.EQUALS,
+					new CompositeField(seven, new IntField(500))), 0));
+		}
+	}
+
+	/**
+	 * @return the number of tuples ipred selects from tree, checking that
+	 * their third fields count up from first
+	 */
+	private int countInOrder(BTreeFile tree, IndexPredicate ipred, int first) throws Exception {
+		DbFileIterator it = tree.indexIterator(tid, ipred);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(new IntField(first + count), it.next().getField(2));
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
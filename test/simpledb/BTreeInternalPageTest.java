@@ -313,6 +313,38 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/** The child a linear walk over the entries would follow for key. */
+	private static BTreePageId linearChild(BTreeInternalPage page, int key) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (((IntField) e.getKey()).getValue() >= key)
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), including after deletes
+	 * have left empty slots between the entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		for (int key = 0; key < 70000; key += 97)
+			assertEquals(linearChild(page, key), page.findChild(new IntField(key)));
+
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 2)
+			page.deleteKeyAndRightChild(entries.get(i));
+		for (int key = 0; key < 70000; key += 97)
+			assertEquals(linearChild(page, key), page.findChild(new IntField(key)));
+		assertEquals(linearChild(page, 42878), page.findChild(new IntField(42878)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
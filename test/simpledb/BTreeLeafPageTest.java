@@ -336,6 +336,46 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/** The keys at or after key, as a linear scan would find them. */
+	private static List<Integer> linearScan(BTreeLeafPage page, int key) {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			int k = ((IntField) it.next().getField(0)).getValue();
+			if (k >= key)
+				keys.add(k);
+		}
+		return keys;
+	}
+
+	private static List<Integer> searchFrom(BTreeLeafPage page, int key) {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		Iterator<Tuple> it = page.iterator(new IntField(key));
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), including after deletes
+	 * have left empty slots between the tuples
+	 */
+	@Test public void iteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int key = 0; key < 70000; key += 97)
+			assertEquals(linearScan(page, key), searchFrom(page, key));
+
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 0; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+		for (int key = 0; key < 70000; key += 97)
+			assertEquals(linearScan(page, key), searchFrom(page, key));
+		assertEquals(linearScan(page, 42878), searchFrom(page, 42878));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
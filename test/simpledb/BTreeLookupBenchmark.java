@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Benchmark of point lookups in a B+ tree. Compares finding a key inside a
+ * single full page by walking its entries or tuples with the binary search
+ * over the slots, and then times whole EQUALS lookups through
+ * BTreeFile.indexIterator on a bulk loaded tree.
+ * <p>
+ * Run with: ant runbench -Dbench=BTreeLookupBenchmark
+ */
+public class BTreeLookupBenchmark {
+
+    private static final int ROWS = 200000;
+    private static final int LOOKUPS = 200000;
+    private static final int PAGE_PROBES = 2000000;
+
+    /** The child a walk over the entries of an internal page would follow. */
+    static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+                return e.getLeftChild();
+        }
+        return e.getRightChild();
+    }
+
+    /** The first tuple at or after f found by scanning a leaf page. */
+    static Tuple linearTuple(BTreeLeafPage page, Field f) {
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(0)))
+                return t;
+        }
+        return null;
+    }
+
+    private static IntField[] randomKeys(int n, int max, long seed) {
+        Random r = new Random(seed);
+        IntField[] keys = new IntField[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = new IntField(r.nextInt(max));
+        return keys;
+    }
+
+    private static BTreeInternalPage fullInternalPage(int tableId) throws Exception {
+        BTreePageId pid = new BTreePageId(tableId, 1, BTreePageId.INTERNAL);
+        BTreeInternalPage page = new BTreeInternalPage(pid,
+                BTreeInternalPage.createEmptyPageData(), 0);
+        int n = page.getMaxEntries();
+        for (int i = 0; i < n; i++)
+            page.insertEntry(new BTreeEntry(new IntField(i * 10),
+                    new BTreePageId(tableId, i + 1, BTreePageId.LEAF),
+                    new BTreePageId(tableId, i + 2, BTreePageId.LEAF)));
+        return page;
+    }
+
+    private static BTreeLeafPage fullLeafPage(int tableId) throws Exception {
+        BTreePageId pid = new BTreePageId(tableId, 1, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+        int n = page.getMaxTuples();
+        for (int i = 0; i < n; i++)
+            page.insertTuple(BTreeUtility.getBTreeTuple(i * 10, 2));
+        return page;
+    }
+
+    private static void pageSearch(BTreeInternalPage internal, BTreeLeafPage leaf) {
+        IntField[] keys = randomKeys(PAGE_PROBES, internal.getMaxEntries() * 10, 1);
+        int sink = 0;
+
+        long start = System.nanoTime();
+        for (IntField k : keys)
+            sink += linearChild(internal, k).pageNumber();
+        long linearInternal = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (IntField k : keys)
+            sink -= internal.findChild(k).pageNumber();
+        long binaryInternal = System.nanoTime() - start;
+
+        keys = randomKeys(PAGE_PROBES, leaf.getMaxTuples() * 10, 2);
+        start = System.nanoTime();
+        for (IntField k : keys)
+            sink += linearTuple(leaf, k) == null ? 0 : 1;
+        long linearLeaf = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (IntField k : keys)
+            sink -= leaf.iterator(k).hasNext() ? 1 : 0;
+        long binaryLeaf = System.nanoTime() - start;
+
+        System.out.println("page          slots  linear (ns/probe)  binary (ns/probe)");
+        System.out.printf("internal  %9d  %17.1f  %17.1f%n", internal.getMaxEntries(),
+                (double) linearInternal / PAGE_PROBES, (double) binaryInternal / PAGE_PROBES);
+        System.out.printf("leaf      %9d  %17.1f  %17.1f%n", leaf.getMaxTuples(),
+                (double) linearLeaf / PAGE_PROBES, (double) binaryLeaf / PAGE_PROBES);
+        if (sink != 0)
+            throw new IllegalStateException("linear and binary search disagree");
+    }
+
+    private static void pointLookups() throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, ROWS, 0, 1 << 20);
+        Transaction t = new Transaction();
+        t.start();
+        TupleIterator source = new TupleIterator(bf.getTupleDesc(), tuples);
+        source.open();
+        bf.bulkLoad(t.getId(), source, 1.0);
+        source.close();
+        t.commit();
+
+        IntField[] keys = randomKeys(LOOKUPS, 1 << 20, 3);
+        t = new Transaction();
+        t.start();
+        int found = 0;
+        long start = System.nanoTime();
+        for (IntField k : keys) {
+            DbFileIterator it = bf.indexIterator(t.getId(),
+                    new IndexPredicate(Predicate.Op.EQUALS, k));
+            it.open();
+            if (it.hasNext())
+                found++;
+            it.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        t.commit();
+
+        System.out.printf("%d point lookups on %d rows: %.2f us/lookup, %d found%n",
+                LOOKUPS, ROWS, elapsed / 1e3 / LOOKUPS, found);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.resetBufferPool(1000);
+        int tableId = -1;
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(tableId,
+                Utility.getTupleDesc(2)), "bench");
+        pageSearch(fullInternalPage(tableId), fullLeafPage(tableId));
+        pointLookups();
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.BTreeUtility.BTreeWriter;
 import simpledb.Predicate.Op;
 
+import java.io.File;
 import java.util.*;
 
 import org.junit.After;
@@ -236,6 +237,69 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * A point lookup locks only the key it reads, so a tuple with a
+	 * neighboring key can be inserted into the same leaf page meanwhile,
+	 * while an insert of the key read, or into the gap a lookup of a missing
+	 * key covers, waits for the reader.
+	 */
+	@Test
+	public void keyRangeLockingSamePage() throws Exception {
+		File file = File.createTempFile("keyrange", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+		for(int i = 0; i <= 100; i += 10) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// read an existing key and a missing one
+		int found = 0;
+		for(int key : new int[] { 50, 75 }) {
+			DbFileIterator fit = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			fit.open();
+			while(fit.hasNext()) {
+				fit.next();
+				found++;
+			}
+			fit.close();
+		}
+		assertEquals(1, found);
+
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter neighbor = new BTreeWriter(tid1, bf, 55, 1);
+		neighbor.start();
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter sameKey = new BTreeWriter(tid2, bf, 50, 2);
+		sameKey.start();
+		TransactionId tid3 = new TransactionId();
+		BTreeWriter sameGap = new BTreeWriter(tid3, bf, 72, 1);
+		sameGap.start();
+
+		neighbor.join(10 * POLL_INTERVAL);
+		assertTrue(neighbor.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(sameKey.succeeded());
+		assertFalse(sameGap.succeeded());
+
+		// now let the inserts happen; writers to one page still take turns
+		Database.getBufferPool().transactionComplete(tid);
+		boolean done2 = false, done3 = false;
+		while(!done2 || !done3) {
+			Thread.sleep(POLL_INTERVAL);
+			if(!done2 && sameKey.succeeded()) {
+				Database.getBufferPool().transactionComplete(tid2);
+				done2 = true;
+			}
+			if(!done3 && sameGap.succeeded()) {
+				Database.getBufferPool().transactionComplete(tid3);
+				done3 = true;
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,173 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Benchmark of a B+ tree keyed on strings, with URL-like keys that share
+ * long prefixes. Builds the same index with string keys stored in full and
+ * with suffix-truncated separators in the internal pages and prefix
+ * compressed leaves, both by bulk loading and by inserting the rows in random
+ * order, and reports the shape of each tree, the number of pages a point
+ * lookup reads from disk with nothing cached, and the time a lookup takes
+ * with the whole tree cached.
+ * <p>
+ * Run with: ant runbench -Dbench=BTreeStringKeyBenchmark
+ */
+public class BTreeStringKeyBenchmark {
+
+    private static final int ROWS = 50000;
+    private static final int COLD_LOOKUPS = 1000;
+    private static final int LOOKUPS = 100000;
+    private static final String[] SECTIONS = { "books", "electronics", "garden", "kitchen",
+            "music", "outdoors", "software", "toys" };
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+    /** A BTreeFile that counts the pages it reads from disk. */
+    static class CountingBTreeFile extends BTreeFile {
+        long reads = 0;
+
+        CountingBTreeFile(File f, boolean compressKeys) {
+            super(f, 0, TD, compressKeys);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    private static StringField key(int i) {
+        return new StringField(String.format("http://www.example.com/catalog/%s/item-%07d.html",
+                SECTIONS[i % SECTIONS.length], i), Type.STRING_LEN);
+    }
+
+    private static ArrayList<Tuple> rows() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, key(i));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private static CountingBTreeFile build(boolean bulk, boolean compressKeys) throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        CountingBTreeFile bf = new CountingBTreeFile(f, compressKeys);
+        Database.getCatalog().addTable(bf);
+        ArrayList<Tuple> tuples = rows();
+        Transaction t = new Transaction();
+        t.start();
+        if (bulk) {
+            TupleIterator source = new TupleIterator(TD, tuples);
+            source.open();
+            bf.bulkLoad(t.getId(), source, 1.0);
+            source.close();
+        } else {
+            Collections.shuffle(tuples, new Random(1));
+            for (Tuple tup : tuples)
+                Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+        }
+        t.commit();
+        // commits only force the log, so write the tree out before dropping the cache
+        Database.getBufferPool().flushAllPages();
+        return bf;
+    }
+
+    /** Pages on each level of the tree, root first. */
+    private static ArrayList<Integer> levels(BTreeFile bf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(t.getId(),
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        ArrayList<Integer> levels = new ArrayList<Integer>();
+        LinkedList<BTreePageId> level = new LinkedList<BTreePageId>();
+        level.add(rootPtr.getRootId());
+        while (!level.isEmpty()) {
+            levels.add(level.size());
+            LinkedList<BTreePageId> next = new LinkedList<BTreePageId>();
+            for (BTreePageId pid : level) {
+                if (pid.pgcateg() != BTreePageId.INTERNAL)
+                    continue;
+                BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+                        t.getId(), pid, Permissions.READ_ONLY);
+                Iterator<BTreeEntry> it = page.iterator();
+                BTreeEntry e = it.next();
+                next.add(e.getLeftChild());
+                next.add(e.getRightChild());
+                while (it.hasNext())
+                    next.add(it.next().getRightChild());
+            }
+            level = next;
+        }
+        t.commit();
+        return levels;
+    }
+
+    private static boolean lookup(BTreeFile bf, TransactionId tid, Field k) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, k));
+        it.open();
+        boolean found = it.hasNext();
+        it.close();
+        return found;
+    }
+
+    private static void run(String name, boolean bulk, boolean compressKeys) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(20000);
+        CountingBTreeFile bf = build(bulk, compressKeys);
+        ArrayList<Integer> levels = levels(bf);
+        int leaves = levels.get(levels.size() - 1);
+        int internal = 0;
+        for (int i = 0; i < levels.size() - 1; i++)
+            internal += levels.get(i);
+
+        // every lookup with nothing cached
+        Random r = new Random(2);
+        long reads = 0;
+        for (int i = 0; i < COLD_LOOKUPS; i++) {
+            Database.resetBufferPool(1000);
+            Transaction t = new Transaction();
+            t.start();
+            long before = bf.reads;
+            if (!lookup(bf, t.getId(), key(r.nextInt(ROWS))))
+                throw new IllegalStateException("key not found");
+            reads += bf.reads - before;
+            t.commit();
+        }
+
+        // and with the whole tree cached
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            lookup(bf, t.getId(), key(r.nextInt(ROWS)));
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++)
+            lookup(bf, t.getId(), key(r.nextInt(ROWS)));
+        long elapsed = System.nanoTime() - start;
+        t.commit();
+
+        System.out.printf("%-22s %6d %8d %8d %10d %14.2f %10.2f%n", name, levels.size(), leaves, internal,
+                bf.numPages() * (long) BufferPool.getPageSize() / 1024, (double) reads / COLD_LOOKUPS,
+                elapsed / 1e3 / LOOKUPS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%d rows, keys like %s%n", ROWS, key(12345));
+        System.out.println("tree                   height   leaves internal  file (KB)  pages/lookup  us/lookup");
+        run("bulk load, plain", true, false);
+        run("inserts, plain", false, false);
+        run("bulk load, compressed", true, true);
+        run("inserts, compressed", false, true);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,258 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolReadTest extends SimpleDbTestBase {
+
+    // HeapFile that counts its reads and makes each one slow, so that
+    // concurrent misses overlap
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+        // make reads by the read-ahead threads fail
+        volatile boolean failPrefetches = false;
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                // fall through and read the page anyway
+            }
+            if (failPrefetches && Thread.currentThread().getName().startsWith("BufferPool-prefetch"))
+                throw new IllegalStateException("read-ahead failed");
+            return super.readPage(pid);
+        }
+    }
+
+    // SlowHeapFile whose writes wait until released, to hold a page pinned
+    class BlockingWriteHeapFile extends SlowHeapFile {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public BlockingWriteHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // write the page anyway
+            }
+            super.writePage(page);
+        }
+    }
+
+    private SlowHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile orig = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        hf = new SlowHeapFile(orig.getFile(), orig.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Concurrent misses on the same page should read it once and all get
+     * the same Page object.
+     */
+    @Test public void concurrentMissesShareOneRead() throws Exception {
+        final int threads = 8;
+        final PageId pid = new HeapPageId(hf.getId(), 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Page[] pages = new Page[threads];
+        final Exception[] errors = new Exception[threads];
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int idx = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        pages[idx] = Database.getBufferPool().getPage(
+                                new TransactionId(), pid, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        errors[idx] = e;
+                    }
+                }
+            };
+            t.start();
+            workers.add(t);
+        }
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+
+        assertEquals(1, hf.reads.get());
+        for (int i = 0; i < threads; i++) {
+            assertNull(errors[i]);
+            assertSame(pages[0], pages[i]);
+        }
+    }
+
+    /**
+     * Threads missing on the pages of a file at the same time, each in its
+     * own order, read every page once.
+     */
+    @Test public void concurrentMissesOnManyPages() throws Exception {
+        HeapFile orig = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        final SlowHeapFile f = new SlowHeapFile(orig.getFile(), orig.getTupleDesc());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        final int pages = f.numPages();
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Exception[] errors = new Exception[threads];
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int idx = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        ArrayList<Integer> order = new ArrayList<Integer>();
+                        for (int p = 0; p < pages; p++)
+                            order.add(p);
+                        Collections.shuffle(order, new Random(idx));
+                        start.await();
+                        TransactionId tid = new TransactionId();
+                        for (int p : order) {
+                            Page page = Database.getBufferPool().getPage(tid,
+                                    new HeapPageId(f.getId(), p), Permissions.READ_ONLY);
+                            assertEquals(p, page.getId().pageNumber());
+                        }
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Exception e) {
+                        errors[idx] = e;
+                    }
+                }
+            };
+            t.start();
+            workers.add(t);
+        }
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+
+        for (int i = 0; i < threads; i++)
+            assertNull(errors[i]);
+        assertEquals(pages, f.reads.get());
+    }
+
+    /**
+     * A page pinned while the pool writes it out is not evicted to make room
+     * for another page; an unpinned one is.
+     */
+    @Test public void evictionSkipsPagesBeingWritten() throws Exception {
+        HeapFile orig = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        BlockingWriteHeapFile f = new BlockingWriteHeapFile(orig.getFile(), orig.getTupleDesc());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        assertTrue(f.numPages() >= 3);
+        final BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        PageId pid0 = new HeapPageId(f.getId(), 0);
+        Page page0 = bp.getPage(tid, pid0, Permissions.READ_ONLY);
+        page0.markDirty(true, BufferPool.LOGGED);
+
+        final Exception[] error = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    bp.flushAllPages();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        writer.start();
+        assertTrue(f.writing.await(10, TimeUnit.SECONDS));
+        // the pool is full once page 1 is in, so page 2 evicts page 1
+        bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(3, f.reads.get());
+        f.release.countDown();
+        writer.join();
+
+        assertNull(error[0]);
+        assertNull(page0.isDirty());
+        assertSame(page0, bp.getPage(tid, pid0, Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A full scan should read pages ahead and later hit on them, while still
+     * returning every tuple.
+     */
+    @Test public void sequentialScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        assertTrue(f.numPages() > 8);
+        BufferPool bp = Database.resetBufferPool(64);
+        bp.setReadAheadWindow(8);
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getPrefetchesIssued() > 0);
+        assertTrue(bp.getPrefetchHits() > 0);
+        assertTrue(bp.getPrefetchHitRate() <= 1.0);
+    }
+
+    /**
+     * A request that joins a read-ahead of its page still gets the page if
+     * the read-ahead fails.
+     */
+    @Test public void failedPrefetchIsRetried() throws Exception {
+        hf.failPrefetches = true;
+        PageId pid = new HeapPageId(hf.getId(), 0);
+        Database.getBufferPool().prefetchPage(pid);
+        Page page = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertEquals(pid, page.getId());
+        assertEquals(2, hf.reads.get());
+    }
+
+    /**
+     * Read-ahead requests still queued when the buffer pool is replaced are
+     * dropped.
+     */
+    @Test public void resetCancelsPrefetches() throws Exception {
+        HeapFile orig = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        SlowHeapFile f = new SlowHeapFile(orig.getFile(), orig.getTupleDesc());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        int pages = f.numPages();
+        assertTrue(pages > 4);
+        for (int i = 0; i < pages; i++)
+            Database.getBufferPool().prefetchPage(new HeapPageId(f.getId(), i));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Thread.sleep(200 * (pages + 1));
+        // only the reads already running, one per read-ahead thread
+        assertTrue(f.reads.get() <= 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -119,6 +121,135 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         }
     }
     
+    /**
+     * Unit test for BufferPool.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            batch.add(Utility.getHeapTuple(i, 2));
+
+        ArrayList<Page> dirtied = empty.insertTuples(tid, batch);
+        assertEquals(3, dirtied.size());
+        assertEquals(3, empty.numPages());
+        for (int i = 0; i < dirtied.size(); i++) {
+            assertEquals(i, dirtied.get(i).getId().pageNumber());
+            assertEquals(tid, dirtied.get(i).isDirty());
+        }
+        assertEquals(0, ((HeapPage) dirtied.get(1)).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) dirtied.get(2)).getNumEmptySlots());
+
+        // through the buffer pool, the next batch fills the last page first
+        batch.clear();
+        for (int i = 0; i < 10; ++i)
+            batch.add(Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().insertTuples(tid, empty.getId(), batch);
+        for (Tuple t : batch)
+            assertEquals(2, t.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * Before images are taken on the first change to a page and dropped at
+     * commit.
+     */
+    @Test public void beforeImagesHeldUntilCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        byte[] committed = p.getPageData();
+        assertEquals(0, bp.getBeforeImageBytes());
+
+        Tuple t = p.iterator().next();
+        bp.deleteTuple(tid, t);
+        assertEquals(BufferPool.getPageSize(), bp.getBeforeImageBytes());
+        assertArrayEquals(committed, p.getBeforeImage().getPageData());
+        assertFalse(java.util.Arrays.equals(committed, p.getPageData()));
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getBeforeImageBytes());
+        tid = new TransactionId();
+    }
+
+    /**
+     * The page cleaner writes adjacent committed pages with one write.
+     */
+    @Test public void pageCleanerCoalescesAdjacentPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        // queue committed pages, but write them only when asked to below
+        bp.setPageCleaner(TimeUnit.HOURS.toMillis(1), 0);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < 4; i++) {
+                HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), i),
+                        Permissions.READ_WRITE);
+                bp.deleteTuple(t.getId(), p.iterator().next());
+            }
+            t.commit();
+            assertEquals(4, bp.getWriteQueueDepth());
+
+            assertEquals(4, bp.writeQueuedPages());
+            assertEquals(0, bp.getWriteQueueDepth());
+            assertEquals(1, bp.getCleanerWrites());
+            assertEquals(4L * BufferPool.getPageSize(), bp.getBytesWritten());
+            assertTrue(bp.getDirtyPages().isEmpty());
+            for (int i = 0; i < 4; i++) {
+                HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+                assertEquals(1, onDisk.getNumEmptySlots());
+            }
+        } finally {
+            bp.setPageCleaner(0, 0);
+        }
+    }
+
+    /**
+     * Pages the page cleaner fails to write stay dirty and queued, and are
+     * written by a later round.
+     */
+    @Test public void pageCleanerRequeuesFailedWrites() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        final boolean[] failing = { true };
+        HeapFile flaky = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public void writePages(List<Page> pages) throws IOException {
+                if (failing[0])
+                    throw new IOException("disk unavailable");
+                super.writePages(pages);
+            }
+        };
+        Database.getCatalog().addTable(flaky, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setPageCleaner(TimeUnit.HOURS.toMillis(1), 0);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < 2; i++) {
+                HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(flaky.getId(), i),
+                        Permissions.READ_WRITE);
+                bp.deleteTuple(t.getId(), p.iterator().next());
+            }
+            t.commit();
+
+            try {
+                bp.writeQueuedPages();
+                fail("expected the write to fail");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(2, bp.getWriteQueueDepth());
+            assertEquals(2, bp.getDirtyPages().size());
+
+            failing[0] = false;
+            assertEquals(2, bp.writeQueuedPages());
+            assertEquals(0, bp.getWriteQueueDepth());
+            assertTrue(bp.getDirtyPages().isEmpty());
+        } finally {
+            bp.setPageCleaner(0, 0);
+        }
+    }
+
     @Test public void handleManyDirtyPages() throws Exception {
     	HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 10);
     	Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
@@ -1,6 +1,13 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -93,6 +100,32 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Tables marked btree in a schema file are B+ trees keyed on their
+     * primary key, compressing string keys if also marked compress.
+     */
+    @Test public void loadSchemaBTree() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        File schema = new File(dir, "catalog.txt");
+        PrintWriter out = new PrintWriter(new FileWriter(schema));
+        out.println("plain (id int pk, v int) btree");
+        out.println("urls (hits int, url string pk) btree compress");
+        out.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+
+        BTreeFile plain = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("plain"));
+        assertEquals(0, plain.keyField());
+        assertFalse(plain.compressesKeys());
+        BTreeFile urls = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("urls"));
+        assertEquals(1, urls.keyField());
+        assertTrue(urls.compressesKeys());
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
     /**
      * JUnit suite target
      */
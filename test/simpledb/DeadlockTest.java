@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,33 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A request that closes a cycle is aborted at once, while the transaction
+   * it would wait for stays parked until the lock is released.
+   */
+  @Test public void testDeadlockDetectedByRequester() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      fail("expected the request closing the cycle to abort");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, bp.getDeadlocksDetected());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+    assertEquals(1, bp.getLockWaits());
+    assertTrue(bp.getLockWaitNanos() > 0);
+  }
+
   /**
    * JUnit suite target
    */
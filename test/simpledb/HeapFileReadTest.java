@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -121,6 +122,34 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A filtered scan skips over pages with no matching tuple, however many
+     * there are before the first match.
+     */
+    @Test
+    public void testFilteredIteratorSkipsPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3000; i++) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        }
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+        HeapFile multiPageFile = Utility.openHeapFile(2, temp);
+        assertTrue(multiPageFile.numPages() > 2);
+
+        DbFileIterator it = multiPageFile.iterator(tid,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2990)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() > 2990);
+            count += 1;
+        }
+        assertEquals(9, count);
+        it.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -6,6 +6,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -45,6 +46,31 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to a page with room without locking the full pages in front
+     * of it, and the free-space map survives reopening the file.
+     */
+    @Test public void addTupleSkipsFullPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 10, null, null);
+        FreeSpaceMap.sideFile(hf.getFile()).deleteOnExit();
+        assertEquals(4, hf.numPages());
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        hf.insertTuple(tid, t);
+        assertEquals(3, t.getRecordId().getPageId().pageNumber());
+        for (int i = 0; i < 3; i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(FreeSpaceMap.sideFile(hf.getFile()).exists());
+
+        tid = new TransactionId();
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        t = Utility.getHeapTuple(2, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(3, t.getRecordId().getPageId().pageNumber());
+    }
+
     /**
      * JUnit suite target
      */
@@ -99,6 +99,31 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate) and HeapPage.getField()
+     */
+    @Test public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+
+        for (int i = 0; i < EXAMPLE_VALUES.length; i++)
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+
+        Iterator<Tuple> it = page.iterator(p);
+        for (int[] row : EXAMPLE_VALUES) {
+            if (row[0] <= 30000)
+                continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(row[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(row[1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+
+        // only some tuples were decoded; the page must still serialize intact
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
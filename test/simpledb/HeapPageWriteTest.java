@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,30 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Inserts and deletes are written through to the page data, which must
+     * round-trip through the constructor without touching the source array.
+     */
+    @Test public void pageDataReflectsChanges() throws Exception {
+        byte[] source = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, source);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        page.deleteTuple(first);
+        Tuple addition = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(addition);
+        page.insertTuple(Utility.getHeapTuple(9, 2));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, source));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        assertTrue(Arrays.equals(page.getPageData(), copy.getPageData()));
+        Iterator<Tuple> copyIt = copy.iterator();
+        Tuple reread = copyIt.next();
+        assertTrue(TestUtil.compareTuples(addition, reread));
+        assertEquals(addition.getRecordId(), reread.getRecordId());
+    }
+
     /**
      * JUnit suite target
      */
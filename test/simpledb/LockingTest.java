@@ -4,6 +4,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,100 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A reader arriving after a queued writer waits behind it instead of
+   * joining the readers that hold the page.
+   */
+  @Test public void writerNotStarvedByReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * An upgrade goes ahead of a writer that queued earlier, so neither is
+   * aborted.
+   */
+  @Test public void upgradeAheadOfQueuedWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber upgrade = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrade.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(upgrade.acquired());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(TIMEOUT);
+    assertTrue(upgrade.acquired());
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertNull(writer.getError());
+    assertEquals(0, bp.getDeadlocksDetected());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Reading more pages than the escalation threshold replaces the page
+   * locks with a shared table lock, which still lets other readers in but
+   * keeps writers out of every page.
+   */
+  @Test public void readLocksEscalate() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(0, bp.getLockEscalations());
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(1, bp.getLockEscalations());
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p0, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Escalation is skipped while another transaction holds a conflicting
+   * lock on the table, and page locking carries on as before.
+   */
+  @Test public void escalationSkippedOnConflict() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(0, bp.getLockEscalations());
+    grabLock(tid1, p2, Permissions.READ_ONLY, false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private MappedHeapFile mf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, null, tuples);
+        mf = new MappedHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(mf, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test for MappedHeapFile.numPages()
+     */
+    @Test public void numPages() throws Exception {
+        assertEquals(new HeapFile(mf.getFile(), mf.getTupleDesc()).numPages(), mf.numPages());
+    }
+
+    /**
+     * Pages read through the mapping match pages read from the file.
+     */
+    @Test public void readPage() throws Exception {
+        HeapFile hf = new HeapFile(mf.getFile(), mf.getTupleDesc());
+        for (int i = 0; i < mf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(mf.getId(), i);
+            HeapPage mapped = (HeapPage) mf.readPage(pid);
+            HeapPage read = (HeapPage) hf.readPage(pid);
+            assertArrayEquals(read.getPageData(), mapped.getPageData());
+            assertArrayEquals(read.getPageData(), mapped.getBeforeImage().getPageData());
+        }
+    }
+
+    /**
+     * A scan through the buffer pool returns every tuple.
+     */
+    @Test public void scan() throws Exception {
+        SystemTestUtil.matchTuples(mf, tuples);
+    }
+
+    /**
+     * Modifications are rejected.
+     */
+    @Test(expected=DbException.class) public void insertTuple() throws Exception {
+        mf.insertTuple(tid, Utility.getHeapTuple(1, 3));
+    }
+
+    /**
+     * The Insert operator, which inserts in batches, is rejected too.
+     */
+    @Test(expected=DbException.class) public void insertOperator() throws Exception {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        rows.add(Utility.getHeapTuple(1, 3));
+        rows.add(Utility.getHeapTuple(2, 3));
+        Insert insert = new Insert(tid, new TupleIterator(mf.getTupleDesc(), rows), mf.getId());
+        insert.open();
+        insert.next();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
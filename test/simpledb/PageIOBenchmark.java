@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Micro-benchmark comparing the old HeapFile page read path (seek + read on
+ * one shared RandomAccessFile, which has to be serialized) with positional
+ * FileChannel reads, for a varying number of concurrent readers of the same
+ * table. Both paths parse the bytes into a HeapPage.
+ * <p>
+ * Run with: ant runbench -Dbench=PageIOBenchmark
+ */
+public class PageIOBenchmark {
+
+    private static final int ROWS = 400000;
+    private static final int READS_PER_THREAD = 20000;
+
+    interface PageReader {
+        Page read(HeapPageId pid) throws IOException;
+    }
+
+    /** The read path HeapFile used before positional I/O. */
+    static class SeekReader implements PageReader {
+        private final RandomAccessFile raf;
+
+        SeekReader(File f) throws IOException {
+            raf = new RandomAccessFile(f, "r");
+        }
+
+        public Page read(HeapPageId pid) throws IOException {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            synchronized (raf) {
+                raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+                raf.read(data, 0, data.length);
+            }
+            return new HeapPage(pid, data);
+        }
+    }
+
+    static long run(final PageReader reader, final int tableId, final int numPages, int threads)
+            throws InterruptedException {
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread w = new Thread() {
+                public void run() {
+                    Random r = new Random(seed);
+                    try {
+                        for (int i = 0; i < READS_PER_THREAD; i++)
+                            reader.read(new HeapPageId(tableId, r.nextInt(numPages)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            w.start();
+            workers.add(w);
+        }
+        for (Thread w : workers)
+            w.join();
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        final int numPages = hf.numPages();
+        PageReader seek = new SeekReader(hf.getFile());
+        PageReader positional = new PageReader() {
+            public Page read(HeapPageId pid) {
+                return hf.readPage(pid);
+            }
+        };
+
+        // warm up both paths and the page cache
+        run(seek, hf.getId(), numPages, 2);
+        run(positional, hf.getId(), numPages, 2);
+
+        System.out.println("table pages: " + numPages + ", reads per thread: " + READS_PER_THREAD);
+        System.out.println("threads  seek+read (ms)  positional (ms)  speedup");
+        for (int threads : new int[] {1, 2, 4, 8, 16, 32}) {
+            long s = run(seek, hf.getId(), numPages, threads);
+            long p = run(positional, hf.getId(), numPages, threads);
+            System.out.printf("%7d  %14.1f  %15.1f  %7.2f%n", threads,
+                    s / 1e6, p / 1e6, (double) s / p);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY = new ReplacementPolicy.EvictionFilter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    /**
+     * Load a hot page, reference it again, then stream scan pages through the
+     * policy; the hot page must never be chosen.
+     */
+    private void checkScanResistance(ReplacementPolicy policy, PageId hotPid, int capacity) {
+        policy.pageLoaded(hotPid);
+        policy.pageAccessed(hotPid);
+        for (int i = 1; i < capacity; i++)
+            policy.pageLoaded(new HeapPageId(1, i));
+
+        for (int i = capacity; i < capacity * 10; i++) {
+            PageId victim = policy.chooseVictim(ANY);
+            assertNotNull(victim);
+            assertFalse(hotPid.equals(victim));
+            policy.pageLoaded(new HeapPageId(1, i));
+            // the hot page keeps being used while the scan runs
+            if (i % (capacity / 2) == 0)
+                policy.pageAccessed(hotPid);
+        }
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() under a scan
+     */
+    @Test public void clockScanResistance() {
+        checkScanResistance(new ClockReplacementPolicy(8), new HeapPageId(2, 0), 8);
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy.chooseVictim() under a scan
+     */
+    @Test public void lruKScanResistance() {
+        checkScanResistance(new LRUKReplacementPolicy(2, 8), new HeapPageId(2, 0), 8);
+    }
+
+    /**
+     * B+ tree internal pages should survive a scan even without being re-used.
+     */
+    @Test public void indexPagesStayResident() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+                new ClockReplacementPolicy(8), new LRUKReplacementPolicy(2, 8) };
+        for (ReplacementPolicy policy : policies) {
+            BTreePageId internal = new BTreePageId(3, 1, BTreePageId.INTERNAL);
+            policy.pageLoaded(internal);
+            for (int i = 0; i < 7; i++)
+                policy.pageLoaded(new HeapPageId(1, i));
+            for (int i = 7; i < 14; i++) {
+                assertFalse(internal.equals(policy.chooseVictim(ANY)));
+                policy.pageLoaded(new HeapPageId(1, i));
+            }
+        }
+    }
+
+    /**
+     * Pages rejected by the filter are never chosen; null when none qualifies.
+     */
+    @Test public void respectsFilter() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+                new ClockReplacementPolicy(4), new LRUKReplacementPolicy(2, 4) };
+        final PageId clean = new HeapPageId(1, 3);
+        for (ReplacementPolicy policy : policies) {
+            for (int i = 0; i < 4; i++)
+                policy.pageLoaded(new HeapPageId(1, i));
+            PageId victim = policy.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return pid.equals(clean);
+                }
+            });
+            assertEquals(clean, victim);
+            assertNull(policy.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return false;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Unit test for the hit/miss/eviction counters
+     */
+    @Test public void counters() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(4);
+        policy.pageLoaded(new HeapPageId(1, 0));
+        policy.pageLoaded(new HeapPageId(1, 1));
+        policy.pageAccessed(new HeapPageId(1, 0));
+        policy.chooseVictim(ANY);
+        assertEquals(1, policy.getHits());
+        assertEquals(2, policy.getMisses());
+        assertEquals(1, policy.getEvictions());
+        policy.resetStats();
+        assertEquals(0, policy.getHits());
+        assertEquals(0, policy.getMisses());
+        assertEquals(0, policy.getEvictions());
+    }
+
+    /**
+     * Unit test for pageReinstated(): a victim handed back is a candidate
+     * again, without counting as a miss or as a reference
+     */
+    @Test public void reinstatedVictim() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+                new ClockReplacementPolicy(4), new LRUKReplacementPolicy(2, 4) };
+        for (ReplacementPolicy policy : policies) {
+            PageId first = new HeapPageId(1, 0);
+            policy.pageLoaded(first);
+            policy.pageLoaded(new HeapPageId(1, 1));
+            PageId victim = policy.chooseVictim(ANY);
+            assertEquals(first, victim);
+            policy.pageReinstated(victim);
+            assertEquals(2, policy.getMisses());
+            assertEquals(0, policy.getHits());
+            PageId next = policy.chooseVictim(ANY);
+            PageId last = policy.chooseVictim(ANY);
+            assertTrue(first.equals(next) || first.equals(last));
+            assertNull(policy.chooseVictim(ANY));
+        }
+
+        // LRU-K: still referenced once, so it is not promoted and goes
+        // before the page referenced twice
+        ReplacementPolicy lruK = new LRUKReplacementPolicy(2, 4);
+        PageId first = new HeapPageId(1, 0);
+        lruK.pageLoaded(new HeapPageId(1, 1));
+        lruK.pageAccessed(new HeapPageId(1, 1));
+        lruK.pageLoaded(first);
+        lruK.pageReinstated(lruK.chooseVictim(ANY));
+        assertEquals(first, lruK.chooseVictim(ANY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
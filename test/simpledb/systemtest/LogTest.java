@@ -0,0 +1,267 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of write-ahead logging and recovery. A crash is simulated by
+ * throwing away the Database instance, and with it the buffer pool, and
+ * recovering from the log with a fresh one.
+ */
+public class LogTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        file = hf.getFile();
+    }
+
+    /** Forget everything in memory and recover from the log. */
+    private void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    private void insert(Transaction t, int value)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { value, value }));
+    }
+
+    private boolean find(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        boolean found = false;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == value)
+                found = true;
+        }
+        it.close();
+        t.commit();
+        return found;
+    }
+
+    /** @return true if the value is in the table file itself */
+    private boolean onDisk(int value) throws Exception {
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                if (((IntField) it.next().getField(0)).getValue() == value)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A commit only forces the log; the committed row is redone from the
+     * log after a crash.
+     */
+    @Test public void testCommitIsRedone() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 5001);
+        t.commit();
+        assertFalse(onDisk(5001));
+
+        crash();
+        assertTrue(onDisk(5001));
+        assertTrue(find(5001));
+    }
+
+    /**
+     * Pages of an unfinished transaction that were written out before the
+     * crash are undone.
+     */
+    @Test public void testStolenUncommittedIsUndone() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 5002);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(onDisk(5002));
+
+        crash();
+        assertFalse(onDisk(5002));
+        assertFalse(find(5002));
+    }
+
+    /**
+     * Aborting a transaction whose pages were written out restores them on
+     * disk as well as in memory.
+     */
+    @Test public void testAbortAfterSteal() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 5003);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        assertFalse(onDisk(5003));
+        assertFalse(find(5003));
+    }
+
+    /**
+     * A checkpoint writes no pages. Committed work before it is redone from
+     * the dirty page table it records, and a transaction that was running
+     * across it is undone.
+     */
+    @Test public void testCheckpoint() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 5004);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 5005);
+        Database.getLogFile().logCheckpoint();
+        assertFalse(onDisk(5004));
+        assertFalse(onDisk(5005));
+
+        crash();
+        assertTrue(find(5004));
+        assertFalse(find(5005));
+    }
+
+    /**
+     * Redo points stay valid when a checkpoint truncates the log.
+     */
+    @Test public void testCheckpointAfterTruncation() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 5007);
+        t1.commit();
+        log.logCheckpoint();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 5008);
+        t2.commit();
+        log.logCheckpoint();
+
+        crash();
+        assertTrue(find(5007));
+        assertTrue(find(5008));
+    }
+
+    /**
+     * The page cleaner writes committed pages, after which they are no
+     * longer in the dirty page table.
+     */
+    @Test public void testPageCleaner() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 5009);
+        assertTrue(bp.getDirtyPages().isEmpty());
+        t.commit();
+        assertFalse(bp.getDirtyPages().isEmpty());
+
+        assertTrue(bp.cleanPages(10) > 0);
+        assertTrue(onDisk(5009));
+        assertTrue(bp.getDirtyPages().isEmpty());
+    }
+
+    /**
+     * B+ tree pages are logged and redone like heap pages.
+     */
+    @Test public void testBTreeCommitIsRedone() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        File btreeFile = bf.getFile();
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                BTreeUtility.getBTreeTuple(new int[] { 5006, 5006 }));
+        t.commit();
+
+        Database.reset();
+        bf = BTreeUtility.openBTreeFile(2, btreeFile, 0);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.indexIterator(t.getId(),
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(5006)));
+        it.open();
+        assertTrue(it.hasNext());
+        it.close();
+        t.commit();
+    }
+
+    /**
+     * Concurrent commits share log forces.
+     */
+    @Test public void testGroupCommit() throws Exception {
+        final int threads = 8;
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommit(200000, threads);
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> committers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread c = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        start.await();
+                        t.commit();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            c.start();
+            committers.add(c);
+        }
+        for (Thread c : committers)
+            c.join();
+
+        assertTrue(errors.isEmpty());
+        assertEquals(threads, log.getCommits());
+        assertTrue(log.getCommitForces() < threads);
+    }
+
+    /**
+     * Eviction asks the log whether a transaction is active while holding
+     * the replacement policy's lock, and rollback takes that lock while
+     * holding the log's monitor, so isActive must not wait for the monitor.
+     */
+    @Test public void testIsActiveWhileLogIsBusy() throws Exception {
+        final Transaction t = new Transaction();
+        t.start();
+        final LogFile log = Database.getLogFile();
+        final boolean[] active = new boolean[1];
+        Thread evictor = new Thread() {
+            public void run() {
+                active[0] = log.isActive(t.getId());
+            }
+        };
+        synchronized (log) {
+            evictor.start();
+            evictor.join(10000);
+            assertFalse(evictor.isAlive());
+        }
+        assertTrue(active[0]);
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogTest.class);
+    }
+}